@@ -0,0 +1,112 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.ingest.IngestDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-document cost of {@link GeocodingProcessor#execute(IngestDocument)}.
+ *
+ * Each invocation processes a fresh document, whose creation is part of the measured cost.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GeocodingProcessorBenchmark {
+
+  /**
+   * hit: the address is cached; miss: the cache is disabled, so every document is looked up; empty: the address is
+   * blank; missing: the document has no address; error: the lookup fails.
+   */
+  @Param({"hit", "miss", "empty", "missing", "error"})
+  public String scenario;
+
+  private GeocodingService service;
+  private GeocodingProcessor processor;
+  private Map<String, Object> source;
+
+  @Setup
+  public void setUp() {
+    this.service = new StubGeocodingService(StubGeocodingService.settings(!this.scenario.equals("miss")));
+    this.service.start();
+    this.processor = new GeocodingProcessor(this.service, "benchmark", "address", "location");
+
+    this.source = new HashMap<>();
+    this.source.put("name", "Google");
+    switch (this.scenario) {
+      case "hit":
+      case "miss":
+        this.source.put("address", StubGeocodingService.KNOWN_ADDRESS);
+        break;
+      case "empty":
+        this.source.put("address", " ");
+        break;
+      case "error":
+        this.source.put("address", StubGeocodingService.ERROR_ADDRESS);
+        break;
+      case "missing":
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown scenario [" + this.scenario + "]");
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.service.stop();
+    this.service.close();
+  }
+
+  @Benchmark
+  public IngestDocument execute() {
+    return process();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public IngestDocument executeContended() {
+    return process();
+  }
+
+  private IngestDocument process() {
+    final IngestDocument document = new IngestDocument("index", "_doc", "1", null, null, null, null,
+        new HashMap<>(this.source));
+    this.processor.execute(document);
+    return document;
+  }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of {@link GeocodingService} lookups, with the cache enabled or disabled.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GeocodingServiceBenchmark {
+
+  @Param({"true", "false"})
+  public boolean cacheEnabled;
+
+  private GeocodingService service;
+
+  @Setup
+  public void setUp() {
+    this.service = new StubGeocodingService(StubGeocodingService.settings(this.cacheEnabled));
+    this.service.start();
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.service.stop();
+    this.service.close();
+  }
+
+  @Benchmark
+  public GeocodingOutput geocode() {
+    return this.service.geocode(StubGeocodingService.KNOWN_ADDRESS);
+  }
+
+  @Benchmark
+  public CompletableFuture<GeocodingOutput> geocodeAsync() {
+    return this.service.geocodeAsync(StubGeocodingService.KNOWN_ADDRESS);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public GeocodingOutput geocodeContended() {
+    return this.service.geocode(StubGeocodingService.KNOWN_ADDRESS);
+  }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * A {@link GeocodingService} answering lookups in memory, so that benchmarks measure the plugin overhead only.
+ */
+class StubGeocodingService extends GeocodingService {
+
+  static final String KNOWN_ADDRESS = "1600 Amphitheatre Parkway Mountain View, CA 94043 USA";
+  static final String ERROR_ADDRESS = "error";
+
+  private static final GeocodingOutput KNOWN_OUTPUT = new GeocodingOutput(37.4223827, -122.0855565);
+
+  StubGeocodingService(Settings settings) {
+    super(settings);
+  }
+
+  @Override
+  GeocodingOutput lookup(String address) {
+    if (address.equals(KNOWN_ADDRESS)) {
+      return KNOWN_OUTPUT;
+    }
+    if (address.equals(ERROR_ADDRESS)) {
+      return new GeocodingOutput(new Exception("Backend error (stub)."));
+    }
+    return null;
+  }
+
+  /**
+   * @return Settings disabling the rate limit, and the node cache if required.
+   */
+  static Settings settings(boolean cacheEnabled) {
+    final Settings.Builder builder = Settings.builder()
+        .put(IngestGeocodingPlugin.RATE_LIMIT_CLUSTER_QPS.getKey(), 0);
+    if (!cacheEnabled) {
+      builder.put(IngestGeocodingPlugin.CACHE_MAX_ENTRIES.getKey(), 0);
+    }
+    return builder.build();
+  }
+
+}
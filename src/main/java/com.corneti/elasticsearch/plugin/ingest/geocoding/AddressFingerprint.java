@@ -0,0 +1,264 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+/**
+ * A 128 bit fingerprint of the canonical form of an address, used as lookup key so that trivial variants of the
+ * same address share cached results.
+ *
+ * The canonical form is lower case, made of the letters and digits of the address, with apostrophes dropped, any
+ * other run of characters collapsed into a single space and common abbreviations expanded, so that
+ * "1600 Amphitheatre Pkwy" and "1600  amphitheatre parkway," have the same fingerprint. The fingerprint is computed
+ * in a single pass over the address, without building the canonical form.
+ */
+final class AddressFingerprint {
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static final String[][] ABBREVIATIONS = {
+      {"apt", "apartment"}, {"av", "avenue"}, {"ave", "avenue"}, {"bldg", "building"}, {"blvd", "boulevard"},
+      {"cir", "circle"}, {"ct", "court"}, {"dr", "drive"}, {"expy", "expressway"}, {"fl", "floor"},
+      {"ft", "fort"}, {"fwy", "freeway"}, {"hwy", "highway"}, {"ln", "lane"}, {"mt", "mount"}, {"pkwy", "parkway"},
+      {"pl", "place"}, {"rd", "road"}, {"sq", "square"}, {"st", "street"}, {"ste", "suite"}, {"ter", "terrace"},
+      {"trl", "trail"}, {"n", "north"}, {"s", "south"}, {"e", "east"}, {"w", "west"}, {"ne", "northeast"},
+      {"nw", "northwest"}, {"se", "southeast"}, {"sw", "southwest"}, {"cso", "corso"}, {"pza", "piazza"},
+      {"vle", "viale"}
+  };
+
+  // open addressing table of the abbreviations, keyed by the hash of their characters
+  private static final int TABLE_MASK = 127;
+  private static final long[] HASHES = new long[TABLE_MASK + 1];
+  private static final char[][] KEYS = new char[TABLE_MASK + 1][];
+  private static final char[][] EXPANSIONS = new char[TABLE_MASK + 1][];
+  private static final int MAX_ABBREVIATION_LENGTH;
+
+  static {
+    int maxLength = 0;
+    for (String[] abbreviation : ABBREVIATIONS) {
+      final char[] key = abbreviation[0].toCharArray();
+      long hash = FNV_OFFSET;
+      for (char c : key) {
+        hash = (hash ^ c) * FNV_PRIME;
+      }
+      int slot = (int) hash & TABLE_MASK;
+      while (KEYS[slot] != null) {
+        slot = (slot + 1) & TABLE_MASK;
+      }
+      HASHES[slot] = hash;
+      KEYS[slot] = key;
+      EXPANSIONS[slot] = abbreviation[1].toCharArray();
+      maxLength = Math.max(maxLength, key.length);
+    }
+    MAX_ABBREVIATION_LENGTH = maxLength;
+  }
+
+  final long h1;
+  final long h2;
+
+  AddressFingerprint(long h1, long h2) {
+    if (h1 == 0 && h2 == 0) {
+      // (0, 0) is reserved for empty slots of the geocoding store
+      h1 = 1;
+    }
+    this.h1 = h1;
+    this.h2 = h2;
+  }
+
+  /**
+   * @return The fingerprint of the canonical form of the specified address.
+   */
+  static AddressFingerprint of(CharSequence address) {
+    final Hasher hasher = new Hasher();
+    canonicalize(address, hasher);
+    return hasher.finish();
+  }
+
+  /**
+   * @return The canonical form of the specified address.
+   */
+  static String canonicalize(CharSequence address) {
+    final StringBuilder builder = new StringBuilder(address.length());
+    canonicalize(address, builder::append);
+    return builder.toString();
+  }
+
+  private static void canonicalize(CharSequence address, Sink sink) {
+    final int length = address.length();
+    boolean first = true;
+    int i = 0;
+    while (i < length) {
+      if (!isTokenChar(address.charAt(i))) {
+        i++;
+        continue;
+      }
+      final int start = i;
+      int tokenLength = 0;
+      long hash = FNV_OFFSET;
+      while (i < length) {
+        final char c = address.charAt(i);
+        if (isTokenChar(c)) {
+          hash = (hash ^ Character.toLowerCase(c)) * FNV_PRIME;
+          tokenLength++;
+        } else if (!isIgnorable(c)) {
+          break;
+        }
+        i++;
+      }
+
+      if (!first) {
+        sink.append(' ');
+      }
+      first = false;
+      final char[] expansion = tokenLength <= MAX_ABBREVIATION_LENGTH ? expansion(hash, address, start, i) : null;
+      if (expansion != null) {
+        for (char c : expansion) {
+          sink.append(c);
+        }
+      } else {
+        for (int j = start; j < i; j++) {
+          final char c = address.charAt(j);
+          if (isTokenChar(c)) {
+            sink.append(Character.toLowerCase(c));
+          }
+        }
+      }
+    }
+  }
+
+  private static boolean isTokenChar(char c) {
+    return Character.isLetterOrDigit(c);
+  }
+
+  private static boolean isIgnorable(char c) {
+    return c == '\'' || c == '\u2019';
+  }
+
+  /**
+   * @return The expansion of the token between the specified offsets if it is an abbreviation, otherwise null.
+   */
+  private static char[] expansion(long hash, CharSequence address, int start, int end) {
+    for (int slot = (int) hash & TABLE_MASK; KEYS[slot] != null; slot = (slot + 1) & TABLE_MASK) {
+      if (HASHES[slot] == hash && matches(KEYS[slot], address, start, end)) {
+        return EXPANSIONS[slot];
+      }
+    }
+    return null;
+  }
+
+  private static boolean matches(char[] key, CharSequence address, int start, int end) {
+    int k = 0;
+    for (int j = start; j < end; j++) {
+      final char c = address.charAt(j);
+      if (isTokenChar(c)) {
+        if (k == key.length || key[k++] != Character.toLowerCase(c)) {
+          return false;
+        }
+      }
+    }
+    return k == key.length;
+  }
+
+  @FunctionalInterface
+  private interface Sink {
+    void append(char c);
+  }
+
+  /**
+   * Hashes the canonical form in two independent 64 bit lanes, mixed with the murmur3 finalizer.
+   */
+  private static final class Hasher implements Sink {
+
+    private long h1 = FNV_OFFSET;
+    private long h2 = 0x9e3779b97f4a7c15L;
+    private int length;
+
+    @Override
+    public void append(char c) {
+      this.h1 = (this.h1 ^ c) * FNV_PRIME;
+      this.h2 = Long.rotateLeft(this.h2 + c * 0xc2b2ae3d27d4eb4fL, 31) * 0x87c37b91114253d5L;
+      this.length++;
+    }
+
+    AddressFingerprint finish() {
+      long h1 = fmix(this.h1 ^ this.length);
+      long h2 = fmix(this.h2 ^ this.length);
+      h1 += h2;
+      h2 += h1;
+      return new AddressFingerprint(h1, h2);
+    }
+
+    private static long fmix(long k) {
+      k ^= k >>> 33;
+      k *= 0xff51afd7ed558ccdL;
+      k ^= k >>> 33;
+      k *= 0xc4ceb9fe1a85ec53L;
+      k ^= k >>> 33;
+      return k;
+    }
+
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    final AddressFingerprint that = (AddressFingerprint) o;
+    return this.h1 == that.h1 && this.h2 == that.h2;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (this.h1 ^ (this.h1 >>> 32));
+  }
+
+  /**
+   * @return true if the specified string is the hexadecimal form of this fingerprint, as returned by
+   *     {@link #toString()}; the string is compared in place, without formatting this fingerprint.
+   */
+  boolean matches(String hex) {
+    if (hex.length() != 32) {
+      return false;
+    }
+    for (int i = 0; i < 32; i++) {
+      final long h = i < 16 ? this.h1 : this.h2;
+      final int nibble = (int) (h >>> (60 - 4 * (i & 15))) & 0xf;
+      if (Character.digit(hex.charAt(i), 16) != nibble) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The 32 lower case hexadecimal digits of the fingerprint.
+   */
+  @Override
+  public String toString() {
+    final char[] chars = new char[32];
+    for (int i = 0; i < 32; i++) {
+      final long h = i < 16 ? this.h1 : this.h2;
+      chars[i] = Character.forDigit((int) (h >>> (60 - 4 * (i & 15))) & 0xf, 16);
+    }
+    return new String(chars);
+  }
+
+}
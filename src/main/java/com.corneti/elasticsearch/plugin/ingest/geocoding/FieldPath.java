@@ -0,0 +1,116 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.index.mapper.SourceFieldMapper;
+import org.elasticsearch.ingest.IngestDocument;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A field path of {@link IngestDocument}s, split once so that it is not parsed again each time a field is read or
+ * written.
+ *
+ * Objects are walked directly; paths going through the ingest metadata or through lists, and writes which would not
+ * simply add a field to an object, are delegated to the {@link IngestDocument}, so that they behave the same.
+ */
+final class FieldPath {
+
+  /**
+   * Returned by {@link #get(IngestDocument)} for fields which do not exist.
+   */
+  static final Object MISSING = new Object();
+
+  private final String path;
+  private final String[] segments;
+
+  FieldPath(String path) {
+    if (Strings.isEmpty(path)) {
+      throw new IllegalArgumentException("path cannot be null nor empty");
+    }
+    this.path = path;
+    if (path.startsWith(IngestDocument.INGEST_KEY + ".")) {
+      this.segments = null;
+    } else {
+      final String sourcePath = path.startsWith(SourceFieldMapper.NAME + ".")
+          ? path.substring(SourceFieldMapper.NAME.length() + 1)
+          : path;
+      this.segments = sourcePath.split("\\.");
+      if (this.segments.length == 0 || (this.segments.length == 1 && this.segments[0].isEmpty())) {
+        throw new IllegalArgumentException("path [" + path + "] is not valid");
+      }
+    }
+  }
+
+  /**
+   * @return The value of the field, which may be null, or {@link #MISSING} if the field does not exist.
+   */
+  Object get(IngestDocument document) {
+    if (this.segments == null) {
+      return delegatedGet(document);
+    }
+    Object context = document.getSourceAndMetadata();
+    for (String segment : this.segments) {
+      if (!(context instanceof Map)) {
+        return delegatedGet(document);
+      }
+      final Map<?, ?> map = (Map<?, ?>) context;
+      context = map.get(segment);
+      if (context == null && !map.containsKey(segment)) {
+        return MISSING;
+      }
+    }
+    return context;
+  }
+
+  private Object delegatedGet(IngestDocument document) {
+    return document.hasField(this.path) ? document.getFieldValue(this.path, Object.class) : MISSING;
+  }
+
+  /**
+   * Sets the value of the field, creating the missing objects along the path.
+   */
+  @SuppressWarnings("unchecked")
+  void set(IngestDocument document, Object value) {
+    if (this.segments == null) {
+      document.setFieldValue(this.path, value);
+      return;
+    }
+    Map<String, Object> map = document.getSourceAndMetadata();
+    for (int i = 0; i < this.segments.length - 1; i++) {
+      Object child = map.get(this.segments[i]);
+      if (child == null && !map.containsKey(this.segments[i])) {
+        child = new HashMap<String, Object>();
+        map.put(this.segments[i], child);
+      } else if (!(child instanceof Map)) {
+        document.setFieldValue(this.path, value);
+        return;
+      }
+      map = (Map<String, Object>) child;
+    }
+    map.put(this.segments[this.segments.length - 1], value);
+  }
+
+  @Override
+  public String toString() {
+    return this.path;
+  }
+
+}
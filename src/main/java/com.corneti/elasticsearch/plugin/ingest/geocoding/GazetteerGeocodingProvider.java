@@ -0,0 +1,359 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An offline {@link GeocodingProvider} matching addresses against a local gazetteer.
+ *
+ * The gazetteer is a CSV (or tab separated) file with a header row; the {@code lat}/{@code latitude} and
+ * {@code lon}/{@code lng}/{@code longitude} columns hold the coordinates of each place, while all the other
+ * columns except {@code id} and {@code hash} make up its text, so that OpenAddresses extracts and GeoNames dumps
+ * with a header can be used as they are.
+ *
+ * Places are indexed in a token inverted index stored in flat primitive arrays: every distinct token is kept once
+ * and mapped to an ordinal, and both the postings of each token and the tokens of each place are sorted ordinals.
+ * A lookup scores the places containing the rarest tokens of the address by the idf weighted cosine similarity of
+ * their tokens and returns the best one, if its score is high enough.
+ */
+class GazetteerGeocodingProvider implements GeocodingProvider {
+
+  static final String NAME = "gazetteer";
+
+  static final float MIN_SCORE = 0.5f;
+
+  // number of tokens of the address, starting from the rarest ones, whose places are scored
+  private static final int CANDIDATE_TOKENS = 2;
+
+  private final Map<String, Integer> ordinals;
+  private final float[] idf;
+  private final int[] postingOffsets;
+  private final int[] postings;
+
+  private final double[] latitudes;
+  private final double[] longitudes;
+  private final int[] placeOffsets;
+  private final int[] placeTokens;
+  private final float[] placeNorms;
+  private final float unknownIdf;
+
+  GazetteerGeocodingProvider(Path file) throws IOException {
+    this.ordinals = new HashMap<>();
+    int[] documentFrequencies = new int[1024];
+    double[] latitudes = new double[1024];
+    double[] longitudes = new double[1024];
+    int[] placeOffsets = new int[1025];
+    int[] placeTokens = new int[4096];
+    int places = 0;
+    int tokens = 0;
+
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      final String header = reader.readLine();
+      if (header == null) {
+        throw new IllegalArgumentException("Gazetteer [" + file + "] is empty.");
+      }
+      final char separator = header.indexOf('\t') >= 0 ? '\t' : ',';
+      final List<String> columns = parseLine(header, separator);
+      int latitudeColumn = -1;
+      int longitudeColumn = -1;
+      final boolean[] textColumns = new boolean[columns.size()];
+      for (int i = 0; i < columns.size(); i++) {
+        final String column = columns.get(i).trim().toLowerCase(Locale.ROOT);
+        if (column.equals("lat") || column.equals("latitude")) {
+          latitudeColumn = i;
+        } else if (column.equals("lon") || column.equals("lng") || column.equals("longitude")) {
+          longitudeColumn = i;
+        } else {
+          textColumns[i] = !column.equals("id") && !column.equals("hash");
+        }
+      }
+      if (latitudeColumn < 0 || longitudeColumn < 0) {
+        throw new IllegalArgumentException("Gazetteer [" + file + "] has no latitude or longitude column.");
+      }
+
+      final List<String> placeText = new ArrayList<>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final List<String> values = parseLine(line, separator);
+        if (values.size() <= Math.max(latitudeColumn, longitudeColumn)) {
+          continue;
+        }
+        final double latitude;
+        final double longitude;
+        try {
+          latitude = Double.parseDouble(values.get(latitudeColumn));
+          longitude = Double.parseDouble(values.get(longitudeColumn));
+        } catch (NumberFormatException e) {
+          continue;
+        }
+
+        placeText.clear();
+        for (int i = 0; i < values.size() && i < textColumns.length; i++) {
+          if (textColumns[i]) {
+            tokenize(values.get(i), placeText);
+          }
+        }
+
+        final int start = placeOffsets[places];
+        int end = start;
+        for (String token : placeText) {
+          Integer ordinal = this.ordinals.get(token);
+          if (ordinal == null) {
+            ordinal = tokens++;
+            this.ordinals.put(token, ordinal);
+            documentFrequencies = ArrayUtil.grow(documentFrequencies, tokens);
+          }
+          placeTokens = ArrayUtil.grow(placeTokens, end + 1);
+          placeTokens[end++] = ordinal;
+        }
+        end = sortUnique(placeTokens, start, end);
+        if (end == start) {
+          continue;
+        }
+        for (int i = start; i < end; i++) {
+          documentFrequencies[placeTokens[i]]++;
+        }
+
+        latitudes = ArrayUtil.grow(latitudes, places + 1);
+        longitudes = ArrayUtil.grow(longitudes, places + 1);
+        placeOffsets = ArrayUtil.grow(placeOffsets, places + 2);
+        latitudes[places] = latitude;
+        longitudes[places] = longitude;
+        placeOffsets[++places] = end;
+      }
+    }
+
+    this.latitudes = Arrays.copyOf(latitudes, places);
+    this.longitudes = Arrays.copyOf(longitudes, places);
+    this.placeOffsets = Arrays.copyOf(placeOffsets, places + 1);
+    this.placeTokens = Arrays.copyOf(placeTokens, this.placeOffsets[places]);
+
+    this.idf = new float[tokens];
+    this.postingOffsets = new int[tokens + 1];
+    for (int ordinal = 0; ordinal < tokens; ordinal++) {
+      this.idf[ordinal] = idf(places, documentFrequencies[ordinal]);
+      this.postingOffsets[ordinal + 1] = this.postingOffsets[ordinal] + documentFrequencies[ordinal];
+    }
+    this.unknownIdf = idf(places, 1);
+
+    // places are visited in order, so each posting list ends up sorted
+    this.postings = new int[this.postingOffsets[tokens]];
+    final int[] next = Arrays.copyOf(this.postingOffsets, tokens);
+    this.placeNorms = new float[places];
+    for (int place = 0; place < places; place++) {
+      double norm = 0;
+      for (int i = this.placeOffsets[place]; i < this.placeOffsets[place + 1]; i++) {
+        final int ordinal = this.placeTokens[i];
+        this.postings[next[ordinal]++] = place;
+        norm += this.idf[ordinal] * this.idf[ordinal];
+      }
+      this.placeNorms[place] = (float) Math.sqrt(norm);
+    }
+  }
+
+  @Override
+  public GeocodingOutput geocode(String address) {
+    final List<String> tokens = new ArrayList<>();
+    tokenize(address, tokens);
+
+    int[] query = new int[tokens.size()];
+    int known = 0;
+    double queryNorm = 0;
+    for (String token : tokens) {
+      final Integer ordinal = this.ordinals.get(token);
+      if (ordinal == null) {
+        queryNorm += this.unknownIdf * this.unknownIdf;
+      } else {
+        query[known++] = ordinal;
+      }
+    }
+    known = sortUnique(query, 0, known);
+    if (known == 0) {
+      return null;
+    }
+    for (int i = 0; i < known; i++) {
+      queryNorm += this.idf[query[i]] * this.idf[query[i]];
+    }
+    queryNorm = Math.sqrt(queryNorm);
+
+    int best = -1;
+    double bestScore = MIN_SCORE;
+    for (int candidate : rarest(query, known)) {
+      for (int i = this.postingOffsets[candidate]; i < this.postingOffsets[candidate + 1]; i++) {
+        final int place = this.postings[i];
+        final double score = dotProduct(place, query, known) / (queryNorm * this.placeNorms[place]);
+        if (score > bestScore || (score == bestScore && best < 0)) {
+          best = place;
+          bestScore = score;
+        }
+      }
+    }
+
+    if (best < 0) {
+      return null;
+    }
+    return new GeocodingOutput(this.latitudes[best], this.longitudes[best]);
+  }
+
+  int size() {
+    return this.latitudes.length;
+  }
+
+  @Override
+  public boolean isRemote() {
+    return false;
+  }
+
+  @Override
+  public void close() {
+  }
+
+  /**
+   * @return The sum of the squared idf of the tokens shared by a place and the sorted query ordinals.
+   */
+  private double dotProduct(int place, int[] query, int length) {
+    double dot = 0;
+    int i = this.placeOffsets[place];
+    final int end = this.placeOffsets[place + 1];
+    int j = 0;
+    while (i < end && j < length) {
+      final int ordinal = this.placeTokens[i];
+      if (ordinal == query[j]) {
+        dot += this.idf[ordinal] * this.idf[ordinal];
+        i++;
+        j++;
+      } else if (ordinal < query[j]) {
+        i++;
+      } else {
+        j++;
+      }
+    }
+    return dot;
+  }
+
+  /**
+   * @return The ordinals of the query tokens with the shortest posting lists.
+   */
+  private int[] rarest(int[] query, int length) {
+    final int[] rarest = new int[Math.min(CANDIDATE_TOKENS, length)];
+    final int[] frequencies = new int[rarest.length];
+    int count = 0;
+    for (int i = 0; i < length; i++) {
+      final int frequency = this.postingOffsets[query[i] + 1] - this.postingOffsets[query[i]];
+      int position = count < rarest.length ? count++ : rarest.length;
+      while (position > 0 && frequencies[position - 1] > frequency) {
+        if (position < rarest.length) {
+          rarest[position] = rarest[position - 1];
+          frequencies[position] = frequencies[position - 1];
+        }
+        position--;
+      }
+      if (position < rarest.length) {
+        rarest[position] = query[i];
+        frequencies[position] = frequency;
+      }
+    }
+    return rarest;
+  }
+
+  private static float idf(int places, int documentFrequency) {
+    return (float) Math.log(1.0 + (double) places / documentFrequency);
+  }
+
+  /**
+   * Sorts a range of an array and removes its duplicates.
+   *
+   * @return The end of the deduplicated range.
+   */
+  private static int sortUnique(int[] values, int start, int end) {
+    if (end - start < 2) {
+      return end;
+    }
+    Arrays.sort(values, start, end);
+    int last = start;
+    for (int i = start + 1; i < end; i++) {
+      if (values[i] != values[last]) {
+        values[++last] = values[i];
+      }
+    }
+    return last + 1;
+  }
+
+  /**
+   * Splits a text in lowercase tokens made of letters and digits.
+   */
+  static void tokenize(String text, List<String> tokens) {
+    final StringBuilder token = new StringBuilder();
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      if (Character.isLetterOrDigit(c)) {
+        token.append(Character.toLowerCase(c));
+      } else if (token.length() > 0) {
+        tokens.add(token.toString());
+        token.setLength(0);
+      }
+    }
+    if (token.length() > 0) {
+      tokens.add(token.toString());
+    }
+  }
+
+  /**
+   * Splits a delimited line, honouring double quoted values.
+   */
+  static List<String> parseLine(String line, char separator) {
+    final List<String> values = new ArrayList<>();
+    final StringBuilder value = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      final char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          value.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          value.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == separator) {
+        values.add(value.toString());
+        value.setLength(0);
+      } else {
+        value.append(c);
+      }
+    }
+    values.add(value.toString());
+    return values;
+  }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Writes the coordinates of documents indexed before their address was geocoded back to the documents.
+ *
+ * Deferred documents are queued along with the lookup of their address, which keeps running on the geocoding thread
+ * pool. The queue is periodically drained: documents whose lookup has completed are updated in bulk requests of
+ * partial updates, one at a time, while the others wait for the next flush. Documents which have not been indexed
+ * yet are retried at the next flushes, up to {@value #MAX_ATTEMPTS} times.
+ */
+class GeocodingBackfill implements Closeable {
+
+  static final int MAX_ATTEMPTS = 10;
+
+  /**
+   * A document waiting for the lookup of its address.
+   */
+  static final class Entry {
+
+    final String index;
+    final String type;
+    final String id;
+    final String routing;
+    final CompletableFuture<GeocodingOutput> future;
+    final Function<GeocodingOutput, Map<String, Object>> update;
+    int attempts;
+
+    /**
+     * @param update - Builds the partial document written back from the output of the lookup.
+     */
+    Entry(String index, String type, String id, String routing, CompletableFuture<GeocodingOutput> future,
+          Function<GeocodingOutput, Map<String, Object>> update) {
+      this.index = index;
+      this.type = type;
+      this.id = id;
+      this.routing = routing;
+      this.future = future;
+      this.update = update;
+    }
+
+    UpdateRequest request() {
+      GeocodingOutput output;
+      try {
+        output = this.future.join();
+      } catch (CompletionException e) {
+        output = new GeocodingOutput(e.getCause());
+      }
+      return new UpdateRequest(this.index, this.type, this.id)
+          .routing(this.routing)
+          .doc(this.update.apply(output))
+          .retryOnConflict(3);
+    }
+
+  }
+
+  private final Logger logger;
+  private final Client client;
+  private final ThreadPool threadPool;
+  private final GeocodingStats stats;
+  private final TimeValue flushInterval;
+  private final int bulkSize;
+  private final int queueSize;
+  private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicBoolean flushing = new AtomicBoolean();
+
+  // only accessed by the thread holding the flushing flag
+  private List<Entry> waiting = new ArrayList<>();
+
+  private volatile Scheduler.Cancellable flushTask;
+
+  GeocodingBackfill(Settings settings, Client client, ThreadPool threadPool, GeocodingStats stats) {
+    this.logger = Loggers.getLogger(getClass(), settings);
+    this.client = client;
+    this.threadPool = threadPool;
+    this.stats = stats;
+    this.flushInterval = IngestGeocodingPlugin.BACKFILL_FLUSH_INTERVAL.get(settings);
+    this.bulkSize = IngestGeocodingPlugin.BACKFILL_BULK_SIZE.get(settings);
+    this.queueSize = IngestGeocodingPlugin.BACKFILL_QUEUE_SIZE.get(settings);
+  }
+
+  /**
+   * Schedules the periodic flush of the queued documents.
+   */
+  void start() {
+    this.flushTask = this.threadPool.scheduleWithFixedDelay(this::flush, this.flushInterval, ThreadPool.Names.GENERIC);
+  }
+
+  /**
+   * Queues a document to be updated once the lookup of its address completes.
+   *
+   * @return false if the queue is full, in which case the document must be geocoded by the caller.
+   */
+  boolean defer(Entry entry) {
+    if (this.pending.incrementAndGet() > this.queueSize) {
+      this.pending.decrementAndGet();
+      return false;
+    }
+    this.queue.add(entry);
+    return true;
+  }
+
+  /**
+   * @return The number of documents waiting to be updated.
+   */
+  int pendingCount() {
+    return this.pending.get();
+  }
+
+  /**
+   * Sends a bulk request updating the queued documents whose lookup has completed.
+   */
+  void flush() {
+    if (!this.flushing.compareAndSet(false, true)) {
+      return;
+    }
+    Entry entry;
+    while ((entry = this.queue.poll()) != null) {
+      this.waiting.add(entry);
+    }
+
+    final BulkRequest bulk = new BulkRequest();
+    final List<Entry> batch = new ArrayList<>();
+    final List<Entry> waiting = new ArrayList<>();
+    for (Entry candidate : this.waiting) {
+      if (batch.size() < this.bulkSize && candidate.future.isDone()) {
+        batch.add(candidate);
+        bulk.add(candidate.request());
+      } else {
+        waiting.add(candidate);
+      }
+    }
+    this.waiting = waiting;
+    if (batch.isEmpty()) {
+      this.flushing.set(false);
+      return;
+    }
+
+    try (ThreadContext.StoredContext ignored = this.threadPool.getThreadContext().stashContext()) {
+      this.client.bulk(bulk, new ActionListener<BulkResponse>() {
+        @Override
+        public void onResponse(BulkResponse response) {
+          final BulkItemResponse[] items = response.getItems();
+          for (int i = 0; i < items.length; i++) {
+            if (items[i].isFailed()) {
+              failed(batch.get(i), items[i].getFailure().getCause());
+            } else {
+              GeocodingBackfill.this.stats.increment(GeocodingStats.Counter.BACKFILLED);
+              GeocodingBackfill.this.pending.decrementAndGet();
+            }
+          }
+          flushed(batch.size());
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+          for (Entry entry : batch) {
+            failed(entry, e);
+          }
+          flushed(batch.size());
+        }
+      });
+    }
+  }
+
+  /**
+   * Retries documents which have not been indexed yet, gives up on the others.
+   */
+  private void failed(Entry entry, Exception e) {
+    if (++entry.attempts < MAX_ATTEMPTS && ExceptionsHelper.unwrapCause(e) instanceof DocumentMissingException) {
+      this.queue.add(entry);
+      return;
+    }
+    this.stats.increment(GeocodingStats.Counter.BACKFILL_FAILURES);
+    this.pending.decrementAndGet();
+    this.logger.debug("Unable to write the coordinates of document [{}][{}][{}]: {}", entry.index, entry.type,
+        entry.id, e.getMessage());
+  }
+
+  private void flushed(int count) {
+    this.flushing.set(false);
+    if (count >= this.bulkSize) {
+      this.threadPool.generic().execute(this::flush);
+    }
+  }
+
+  @Override
+  public void close() {
+    final Scheduler.Cancellable flushTask = this.flushTask;
+    if (flushTask != null) {
+      flushTask.cancel();
+    }
+  }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Geocodes a list of addresses on the receiving node, filling the caches ahead of an ingestion.
+ */
+public class GeocodingBulkAction extends Action<GeocodingBulkAction.Request, GeocodingBulkAction.Response,
+    GeocodingBulkAction.RequestBuilder> {
+
+  public static final GeocodingBulkAction INSTANCE = new GeocodingBulkAction();
+  public static final String NAME = "cluster:admin/geocoding/bulk";
+
+  private GeocodingBulkAction() {
+    super(NAME);
+  }
+
+  @Override
+  public Response newResponse() {
+    return new Response();
+  }
+
+  @Override
+  public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+    return new RequestBuilder(client);
+  }
+
+  public static class Request extends ActionRequest {
+
+    static final int DEFAULT_CONCURRENCY = 16;
+    // more outstanding lookups would fill the queue of the geocoding thread pool on their own
+    static final int MAX_CONCURRENCY = GeocodingService.THREAD_POOL_QUEUE_SIZE / 2;
+
+    private List<String> addresses;
+    private int concurrency = DEFAULT_CONCURRENCY;
+
+    public Request() {
+    }
+
+    Request(List<String> addresses) {
+      this.addresses = addresses;
+    }
+
+    List<String> getAddresses() {
+      return this.addresses;
+    }
+
+    int getConcurrency() {
+      return this.concurrency;
+    }
+
+    /**
+     * Sets the maximum number of lookups outstanding at any time; it is lowered to the
+     * {@code ingest.geocoding.bulk.max_concurrency} of the node.
+     */
+    Request setConcurrency(int concurrency) {
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+      ActionRequestValidationException validationException = null;
+      if (this.addresses == null || this.addresses.isEmpty()) {
+        validationException = addValidationError("no addresses to geocode", validationException);
+      }
+      if (this.concurrency < 1 || this.concurrency > MAX_CONCURRENCY) {
+        validationException = addValidationError("concurrency must be between 1 and " + MAX_CONCURRENCY,
+            validationException);
+      }
+      return validationException;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+      super.readFrom(in);
+      this.addresses = in.readList(StreamInput::readString);
+      this.concurrency = in.readVInt();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+      super.writeTo(out);
+      out.writeStringList(this.addresses);
+      out.writeVInt(this.concurrency);
+    }
+
+  }
+
+  public static class RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder> {
+
+    RequestBuilder(ElasticsearchClient client) {
+      super(client, INSTANCE, new Request());
+    }
+
+  }
+
+  /**
+   * The outcome of the lookup of a distinct address.
+   */
+  static class Result implements Writeable {
+
+    private final String address;
+    private final Double latitude;
+    private final Double longitude;
+    private final List<String> errors;
+
+    Result(String address, GeocodingOutput output) {
+      this.address = address;
+      this.latitude = output != null && output.hasLocation() ? output.getLatitude() : null;
+      this.longitude = output != null && output.hasLocation() ? output.getLongitude() : null;
+      this.errors = output == null ? Collections.emptyList() : output.getErrors();
+    }
+
+    Result(StreamInput in) throws IOException {
+      this.address = in.readString();
+      this.latitude = in.readOptionalDouble();
+      this.longitude = in.readOptionalDouble();
+      this.errors = in.readList(StreamInput::readString);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+      out.writeString(this.address);
+      out.writeOptionalDouble(this.latitude);
+      out.writeOptionalDouble(this.longitude);
+      out.writeStringList(this.errors);
+    }
+
+    String getAddress() {
+      return this.address;
+    }
+
+    Double getLatitude() {
+      return this.latitude;
+    }
+
+    List<String> getErrors() {
+      return this.errors;
+    }
+
+    void toXContent(XContentBuilder builder) throws IOException {
+      builder.startObject();
+      builder.field("address", this.address);
+      if (this.latitude != null) {
+        builder.startObject("location");
+        builder.field("lat", this.latitude);
+        builder.field("lon", this.longitude);
+        builder.endObject();
+      }
+      if (!this.errors.isEmpty()) {
+        builder.field("errors", this.errors);
+      }
+      builder.endObject();
+    }
+
+  }
+
+  public static class Response extends ActionResponse implements ToXContentObject {
+
+    private long tookInMillis;
+    private int addresses;
+    private List<Result> results;
+
+    Response() {
+    }
+
+    Response(long tookInMillis, int addresses, List<Result> results) {
+      this.tookInMillis = tookInMillis;
+      this.addresses = addresses;
+      this.results = results;
+    }
+
+    List<Result> getResults() {
+      return this.results;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+      super.readFrom(in);
+      this.tookInMillis = in.readVLong();
+      this.addresses = in.readVInt();
+      this.results = in.readList(Result::new);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+      super.writeTo(out);
+      out.writeVLong(this.tookInMillis);
+      out.writeVInt(this.addresses);
+      out.writeList(this.results);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+      int found = 0;
+      int errors = 0;
+      for (Result result : this.results) {
+        if (result.latitude != null) {
+          found++;
+        } else if (!result.errors.isEmpty()) {
+          errors++;
+        }
+      }
+      builder.startObject();
+      builder.humanReadableField("took_in_millis", "took", new TimeValue(this.tookInMillis));
+      builder.field("addresses", this.addresses);
+      builder.field("distinct", this.results.size());
+      builder.field("found", found);
+      builder.field("errors", errors);
+      builder.startArray("results");
+      for (Result result : this.results) {
+        result.toXContent(builder);
+      }
+      builder.endArray();
+      builder.endObject();
+      return builder;
+    }
+
+  }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Node-local cache of geocoding results, keyed by {@link AddressFingerprint}.
+ *
+ * Successful matches, addresses without matches and addresses failing with a deterministic error are kept in
+ * separate {@link Cache}s, each with its own capacity and time to live, so that junk addresses do not evict good
+ * ones. Each cache is split in lock-striped segments, evicts the least recently used entries once the configured
+ * number of entries is reached and expires entries after the configured time to live. Transient errors are never
+ * cached.
+ *
+ * The matches of a {@link GeocodingCacheSnapshot} taken on another node can be loaded to warm the cache up; they are
+ * moved to the cache when first looked up, and dropped one time to live after the snapshot was loaded.
+ */
+class GeocodingCache {
+
+  /**
+   * Returned by {@link #get(AddressFingerprint)} for addresses known to have no matches.
+   */
+  static final GeocodingOutput NO_MATCH = GeocodingOutput.empty();
+
+  private final Cache<AddressFingerprint, GeocodingOutput> cache;
+  private final Cache<AddressFingerprint, GeocodingOutput> misses;
+  private final Cache<AddressFingerprint, GeocodingOutput> errors;
+  private final long ttlNanos;
+  private volatile GeocodingCacheSnapshot snapshot = GeocodingCacheSnapshot.EMPTY;
+  private volatile long snapshotLoaded;
+
+  GeocodingCache(Settings settings) {
+    this.cache = build(IngestGeocodingPlugin.CACHE_MAX_ENTRIES.get(settings),
+        IngestGeocodingPlugin.CACHE_TTL.get(settings));
+    this.misses = build(IngestGeocodingPlugin.NEGATIVE_CACHE_MAX_ENTRIES.get(settings),
+        IngestGeocodingPlugin.NEGATIVE_CACHE_TTL.get(settings));
+    this.errors = build(IngestGeocodingPlugin.ERROR_CACHE_MAX_ENTRIES.get(settings),
+        IngestGeocodingPlugin.ERROR_CACHE_TTL.get(settings));
+    this.ttlNanos = IngestGeocodingPlugin.CACHE_TTL.get(settings).nanos();
+  }
+
+  /**
+   * @return A cache with the specified capacity and time to live, or null if the capacity is zero.
+   */
+  private static Cache<AddressFingerprint, GeocodingOutput> build(int maxEntries, TimeValue ttl) {
+    if (maxEntries <= 0) {
+      return null;
+    }
+    final CacheBuilder<AddressFingerprint, GeocodingOutput> builder =
+        CacheBuilder.<AddressFingerprint, GeocodingOutput>builder()
+        .setMaximumWeight(maxEntries);
+    if (ttl.nanos() > 0) {
+      builder.setExpireAfterWrite(ttl);
+    }
+    return builder.build();
+  }
+
+  /**
+   * @param key - The fingerprint of an address.
+   * @return The cached {@link GeocodingOutput} for the specified address, {@link #NO_MATCH} if the address is known
+   *     to have no matches, or null if there is nothing cached for it.
+   */
+  GeocodingOutput get(AddressFingerprint key) {
+    GeocodingOutput output = get(this.cache, key);
+    if (output == null) {
+      output = get(this.misses, key);
+      if (output == null) {
+        output = get(this.errors, key);
+        if (output == null) {
+          output = getFromSnapshot(key);
+        }
+      }
+    }
+    return output;
+  }
+
+  private GeocodingOutput getFromSnapshot(AddressFingerprint key) {
+    final GeocodingOutput output = loadedSnapshot().get(key);
+    if (output != null) {
+      put(this.cache, key, output);
+    }
+    return output;
+  }
+
+  /**
+   * @return The loaded snapshot, or an empty one if none was loaded or it has expired.
+   */
+  private GeocodingCacheSnapshot loadedSnapshot() {
+    final GeocodingCacheSnapshot snapshot = this.snapshot;
+    if (snapshot.size() > 0 && this.ttlNanos > 0 && System.nanoTime() - this.snapshotLoaded > this.ttlNanos) {
+      this.snapshot = GeocodingCacheSnapshot.EMPTY;
+      return GeocodingCacheSnapshot.EMPTY;
+    }
+    return snapshot;
+  }
+
+  /**
+   * Loads a snapshot taken on another node, replacing the previously loaded one.
+   */
+  void load(GeocodingCacheSnapshot snapshot) {
+    this.snapshotLoaded = System.nanoTime();
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * @return A snapshot of the matches of the cache, including the loaded entries not looked up yet.
+   */
+  GeocodingCacheSnapshot snapshot() {
+    final Map<AddressFingerprint, GeocodingOutput> matches = new HashMap<>();
+    loadedSnapshot().forEach(matches::put);
+    if (this.cache != null) {
+      for (AddressFingerprint key : this.cache.keys()) {
+        final GeocodingOutput output = this.cache.get(key);
+        if (output != null && output.hasLocation()) {
+          matches.put(key, output);
+        }
+      }
+    }
+    return GeocodingCacheSnapshot.of(new ArrayList<>(matches.entrySet()));
+  }
+
+  private static GeocodingOutput get(Cache<AddressFingerprint, GeocodingOutput> cache, AddressFingerprint key) {
+    return cache == null ? null : cache.get(key);
+  }
+
+  /**
+   * Caches the specified output, unless it is a transient error.
+   *
+   * @param output - The output of a lookup, or null if no matches were found.
+   */
+  void put(AddressFingerprint key, GeocodingOutput output) {
+    if (output == null) {
+      put(this.misses, key, NO_MATCH);
+    } else if (output.getErrors().isEmpty()) {
+      put(this.cache, key, output);
+    } else if (output.isDeterministicError()) {
+      put(this.errors, key, output);
+    }
+  }
+
+  private static void put(Cache<AddressFingerprint, GeocodingOutput> cache, AddressFingerprint key,
+                          GeocodingOutput output) {
+    if (cache != null) {
+      cache.put(key, output);
+    }
+  }
+
+  void invalidateAll() {
+    this.snapshot = GeocodingCacheSnapshot.EMPTY;
+    for (Cache<AddressFingerprint, GeocodingOutput> cache : Arrays.asList(this.cache, this.misses, this.errors)) {
+      if (cache != null) {
+        cache.invalidateAll();
+      }
+    }
+  }
+
+  int count() {
+    return this.cache == null ? 0 : this.cache.count();
+  }
+
+  boolean isEnabled() {
+    return this.cache != null;
+  }
+
+}
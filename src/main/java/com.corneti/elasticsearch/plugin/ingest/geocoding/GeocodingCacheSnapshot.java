@@ -0,0 +1,174 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable copy of the matches of a {@link GeocodingCache}, used to warm up the cache of other nodes.
+ *
+ * Entries are kept in parallel primitive arrays sorted by fingerprint and looked up with a binary search, so that a
+ * snapshot is loaded by copying each array in bulk rather than by inserting entries one by one. The file format
+ * mirrors the arrays: a header with a magic number, the format version and the number of entries, followed by the
+ * high and low halves of the fingerprints, the latitudes and the longitudes.
+ */
+class GeocodingCacheSnapshot {
+
+  static final String FILE_NAME = "cache.snapshot";
+
+  private static final int MAGIC = 0x47454f53;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 12;
+  private static final int ENTRY_SIZE = 4 * Long.BYTES;
+
+  static final GeocodingCacheSnapshot EMPTY = new GeocodingCacheSnapshot(new long[0], new long[0], new double[0],
+      new double[0]);
+
+  private static final Comparator<Map.Entry<AddressFingerprint, GeocodingOutput>> ORDER =
+      Comparator.<Map.Entry<AddressFingerprint, GeocodingOutput>>comparingLong(e -> e.getKey().h1)
+          .thenComparingLong(e -> e.getKey().h2);
+
+  private final long[] h1;
+  private final long[] h2;
+  private final double[] latitudes;
+  private final double[] longitudes;
+
+  private GeocodingCacheSnapshot(long[] h1, long[] h2, double[] latitudes, double[] longitudes) {
+    this.h1 = h1;
+    this.h2 = h2;
+    this.latitudes = latitudes;
+    this.longitudes = longitudes;
+  }
+
+  /**
+   * @param entries - Matches, which must have a location and distinct fingerprints.
+   */
+  static GeocodingCacheSnapshot of(List<Map.Entry<AddressFingerprint, GeocodingOutput>> entries) {
+    entries.sort(ORDER);
+    final int size = entries.size();
+    final GeocodingCacheSnapshot snapshot = new GeocodingCacheSnapshot(new long[size], new long[size],
+        new double[size], new double[size]);
+    for (int i = 0; i < size; i++) {
+      final Map.Entry<AddressFingerprint, GeocodingOutput> entry = entries.get(i);
+      snapshot.h1[i] = entry.getKey().h1;
+      snapshot.h2[i] = entry.getKey().h2;
+      snapshot.latitudes[i] = entry.getValue().getLatitude();
+      snapshot.longitudes[i] = entry.getValue().getLongitude();
+    }
+    return snapshot;
+  }
+
+  int size() {
+    return this.h1.length;
+  }
+
+  /**
+   * @return The match of the specified address, or null if the snapshot does not contain it.
+   */
+  GeocodingOutput get(AddressFingerprint key) {
+    int low = 0;
+    int high = this.h1.length - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      int comparison = Long.compare(this.h1[middle], key.h1);
+      if (comparison == 0) {
+        comparison = Long.compare(this.h2[middle], key.h2);
+      }
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return new GeocodingOutput(this.latitudes[middle], this.longitudes[middle]);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Calls the specified consumer with the fingerprint and the match of each entry.
+   */
+  void forEach(BiConsumer<AddressFingerprint, GeocodingOutput> consumer) {
+    for (int i = 0; i < this.h1.length; i++) {
+      consumer.accept(new AddressFingerprint(this.h1[i], this.h2[i]),
+          new GeocodingOutput(this.latitudes[i], this.longitudes[i]));
+    }
+  }
+
+  /**
+   * Writes the snapshot to a temporary file, then atomically replaces the specified file with it.
+   */
+  void write(Path file) throws IOException {
+    final int size = size();
+    final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size * ENTRY_SIZE);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(size);
+    buffer.asLongBuffer().put(this.h1).put(this.h2);
+    buffer.position(HEADER_SIZE + 2 * size * Long.BYTES);
+    buffer.asDoubleBuffer().put(this.latitudes).put(this.longitudes);
+    buffer.rewind();
+
+    Files.createDirectories(file.getParent());
+    final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }
+    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Maps the specified file and copies its arrays.
+   *
+   * @throws IOException If the file cannot be read or is not a valid snapshot.
+   */
+  static GeocodingCacheSnapshot read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final long length = channel.size();
+      if (length < HEADER_SIZE) {
+        throw new IOException("Invalid geocoding cache snapshot [" + file + "]");
+      }
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      final int magic = buffer.getInt();
+      final int version = buffer.getInt();
+      final int size = buffer.getInt();
+      if (magic != MAGIC || version != VERSION || size < 0 || length != HEADER_SIZE + (long) size * ENTRY_SIZE) {
+        throw new IOException("Invalid geocoding cache snapshot [" + file + "]");
+      }
+      final GeocodingCacheSnapshot snapshot = new GeocodingCacheSnapshot(new long[size], new long[size],
+          new double[size], new double[size]);
+      buffer.asLongBuffer().get(snapshot.h1).get(snapshot.h2);
+      buffer.position(HEADER_SIZE + 2 * size * Long.BYTES);
+      buffer.asDoubleBuffer().get(snapshot.latitudes).get(snapshot.longitudes);
+      return snapshot;
+    }
+  }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Exports the node cache of the selected nodes to a {@link GeocodingCacheSnapshot}, or imports one in it.
+ */
+public class GeocodingCacheSnapshotAction extends Action<GeocodingCacheSnapshotAction.Request,
+    GeocodingCacheSnapshotAction.Response, GeocodingCacheSnapshotAction.RequestBuilder> {
+
+  public static final GeocodingCacheSnapshotAction INSTANCE = new GeocodingCacheSnapshotAction();
+  public static final String NAME = "cluster:admin/geocoding/cache/snapshot";
+
+  private GeocodingCacheSnapshotAction() {
+    super(NAME);
+  }
+
+  @Override
+  public Response newResponse() {
+    return new Response();
+  }
+
+  @Override
+  public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+    return new RequestBuilder(client);
+  }
+
+  enum Operation {
+    EXPORT,
+    IMPORT
+  }
+
+  public static class Request extends BaseNodesRequest<Request> {
+
+    private Operation operation;
+
+    public Request() {
+    }
+
+    Request(Operation operation, String... nodesIds) {
+      super(nodesIds);
+      this.operation = operation;
+    }
+
+    Operation getOperation() {
+      return this.operation;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+      super.readFrom(in);
+      this.operation = in.readEnum(Operation.class);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+      super.writeTo(out);
+      out.writeEnum(this.operation);
+    }
+
+  }
+
+  public static class RequestBuilder extends NodesOperationRequestBuilder<Request, Response, RequestBuilder> {
+
+    RequestBuilder(ElasticsearchClient client) {
+      super(client, INSTANCE, new Request());
+    }
+
+  }
+
+  public static class NodeRequest extends BaseNodeRequest {
+
+    private Operation operation;
+
+    public NodeRequest() {
+    }
+
+    NodeRequest(String nodeId, Operation operation) {
+      super(nodeId);
+      this.operation = operation;
+    }
+
+    Operation getOperation() {
+      return this.operation;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+      super.readFrom(in);
+      this.operation = in.readEnum(Operation.class);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+      super.writeTo(out);
+      out.writeEnum(this.operation);
+    }
+
+  }
+
+  public static class NodeResponse extends BaseNodeResponse implements ToXContentFragment {
+
+    private int entries;
+    private String file;
+
+    public NodeResponse() {
+    }
+
+    NodeResponse(DiscoveryNode node, int entries, String file) {
+      super(node);
+      this.entries = entries;
+      this.file = file;
+    }
+
+    static NodeResponse readNodeResponse(StreamInput in) throws IOException {
+      final NodeResponse response = new NodeResponse();
+      response.readFrom(in);
+      return response;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+      super.readFrom(in);
+      this.entries = in.readVInt();
+      this.file = in.readString();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+      super.writeTo(out);
+      out.writeVInt(this.entries);
+      out.writeString(this.file);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+      builder.field("name", getNode().getName());
+      builder.field("entries", this.entries);
+      builder.field("file", this.file);
+      return builder;
+    }
+
+  }
+
+  public static class Response extends BaseNodesResponse<NodeResponse> implements ToXContentFragment {
+
+    Response() {
+    }
+
+    Response(ClusterName clusterName, List<NodeResponse> nodes, List<FailedNodeException> failures) {
+      super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeResponse> readNodesFrom(StreamInput in) throws IOException {
+      return in.readList(NodeResponse::readNodeResponse);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<NodeResponse> nodes) throws IOException {
+      out.writeStreamableList(nodes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+      builder.startObject("nodes");
+      for (NodeResponse node : getNodes()) {
+        builder.startObject(node.getNode().getId());
+        node.toXContent(builder, params);
+        builder.endObject();
+      }
+      builder.endObject();
+      return builder;
+    }
+
+  }
+
+}
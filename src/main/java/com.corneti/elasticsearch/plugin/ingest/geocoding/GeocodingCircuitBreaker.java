@@ -0,0 +1,82 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * A circuit breaker stopping geocoding requests while the provider keeps failing.
+ *
+ * The breaker opens after the configured number of consecutive failures, so that lookups fail immediately instead of
+ * waiting for a provider that is down. Once the open duration has elapsed, a single probe request is let through:
+ * the breaker closes if it succeeds and opens again if it fails.
+ */
+class GeocodingCircuitBreaker {
+
+  private enum State { CLOSED, OPEN, HALF_OPEN }
+
+  private final int failureThreshold;
+  private final long openNanos;
+
+  private State state = State.CLOSED;
+  private int failures;
+  private long changedAt;
+
+  GeocodingCircuitBreaker(Settings settings) {
+    this.failureThreshold = IngestGeocodingPlugin.CIRCUIT_BREAKER_FAILURE_THRESHOLD.get(settings);
+    this.openNanos = IngestGeocodingPlugin.CIRCUIT_BREAKER_OPEN_DURATION.get(settings).nanos();
+  }
+
+  /**
+   * @return true if a request may be sent to the provider.
+   */
+  synchronized boolean allowRequest(long now) {
+    switch (this.state) {
+      case CLOSED:
+        return true;
+      default:
+        // a probe that never reported back does not keep the breaker half open forever
+        if (now - this.changedAt < this.openNanos) {
+          return false;
+        }
+        this.state = State.HALF_OPEN;
+        this.changedAt = now;
+        return true;
+    }
+  }
+
+  synchronized void onSuccess() {
+    this.state = State.CLOSED;
+    this.failures = 0;
+  }
+
+  synchronized void onFailure(long now) {
+    if (this.failureThreshold <= 0) {
+      return;
+    }
+    this.failures++;
+    if (this.state == State.HALF_OPEN || this.failures >= this.failureThreshold) {
+      this.state = State.OPEN;
+      this.changedAt = now;
+    }
+  }
+
+  synchronized boolean isOpen() {
+    return this.state != State.CLOSED;
+  }
+
+}
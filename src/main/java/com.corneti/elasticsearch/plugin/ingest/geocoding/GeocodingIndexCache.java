@@ -0,0 +1,234 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.collect.MapBuilder;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Geocoding results shared by all the nodes of the cluster, stored in the {@value #INDEX} index keyed by
+ * {@link AddressFingerprint}, so that an address is geocoded once per cluster rather than once per node.
+ *
+ * The index is only read on node cache misses, the node cache acting as near-cache. Writes never block lookups:
+ * they are queued, and dropped if the queue is full, then periodically sent in bulk requests, one at a time.
+ */
+class GeocodingIndexCache implements Closeable {
+
+  static final String INDEX = ".geocoding-cache";
+  static final String TYPE = "_doc";
+
+  private static final String MAPPING = "{\"" + TYPE + "\":{\"dynamic\":\"strict\",\"properties\":{"
+      + "\"location\":{\"type\":\"geo_point\"},\"timestamp\":{\"type\":\"date\",\"format\":\"epoch_millis\"}}}}";
+
+  private final Logger logger;
+  private final Client client;
+  private final ThreadPool threadPool;
+  private final long ttlMillis;
+  private final TimeValue timeout;
+  private final TimeValue flushInterval;
+  private final int bulkSize;
+  private final BlockingQueue<IndexRequest> pending;
+  private final AtomicBoolean flushing = new AtomicBoolean();
+
+  private volatile boolean indexCreated;
+  private volatile Scheduler.Cancellable flushTask;
+
+  GeocodingIndexCache(Settings settings, Client client, ThreadPool threadPool) {
+    this.logger = Loggers.getLogger(getClass(), settings);
+    this.client = client;
+    this.threadPool = threadPool;
+    this.ttlMillis = IngestGeocodingPlugin.SHARED_CACHE_TTL.get(settings).millis();
+    this.timeout = IngestGeocodingPlugin.SHARED_CACHE_TIMEOUT.get(settings);
+    this.flushInterval = IngestGeocodingPlugin.SHARED_CACHE_FLUSH_INTERVAL.get(settings);
+    this.bulkSize = IngestGeocodingPlugin.SHARED_CACHE_BULK_SIZE.get(settings);
+    this.pending = new ArrayBlockingQueue<>(IngestGeocodingPlugin.SHARED_CACHE_QUEUE_SIZE.get(settings));
+  }
+
+  /**
+   * Schedules the periodic flush of the queued results.
+   */
+  void start() {
+    this.flushTask = this.threadPool.scheduleWithFixedDelay(this::flush, this.flushInterval, ThreadPool.Names.GENERIC);
+  }
+
+  /**
+   * @param fingerprint - The fingerprint of an address.
+   * @return The shared {@link GeocodingOutput} for the specified address, or null if there is none, it has expired
+   *     or the index could not be read in time.
+   */
+  GeocodingOutput get(AddressFingerprint fingerprint) {
+    final GetRequest request = new GetRequest(INDEX, TYPE, fingerprint.toString()).preference("_local");
+    final GetResponse response;
+    try (ThreadContext.StoredContext ignored = stashContext()) {
+      response = this.client.get(request).actionGet(this.timeout);
+    } catch (Exception e) {
+      if (!(ExceptionsHelper.unwrapCause(e) instanceof IndexNotFoundException)) {
+        this.logger.debug("Unable to read the shared geocoding cache.", e);
+      }
+      return null;
+    }
+    if (!response.isExists()) {
+      return null;
+    }
+
+    final Map<String, Object> source = response.getSourceAsMap();
+    final Object timestamp = source.get("timestamp");
+    if (this.ttlMillis > 0 && timestamp instanceof Number
+        && ((Number) timestamp).longValue() + this.ttlMillis < System.currentTimeMillis()) {
+      return null;
+    }
+    final Object location = source.get("location");
+    if (!(location instanceof Map)) {
+      return null;
+    }
+    final Object latitude = ((Map<?, ?>) location).get("lat");
+    final Object longitude = ((Map<?, ?>) location).get("lon");
+    if (!(latitude instanceof Number) || !(longitude instanceof Number)) {
+      return null;
+    }
+    return new GeocodingOutput(((Number) latitude).doubleValue(), ((Number) longitude).doubleValue());
+  }
+
+  /**
+   * Queues a successful match to be written to the index; errors and empty results are ignored.
+   */
+  void put(AddressFingerprint fingerprint, GeocodingOutput output) {
+    if (output == null || !output.hasLocation()) {
+      return;
+    }
+    final IndexRequest request = new IndexRequest(INDEX, TYPE, fingerprint.toString()).source(
+        "location", MapBuilder.newMapBuilder().put("lat", output.getLatitude()).put("lon", output.getLongitude()).map(),
+        "timestamp", System.currentTimeMillis());
+    if (!this.pending.offer(request)) {
+      this.logger.trace("Shared geocoding cache queue is full, dropping result.");
+    }
+  }
+
+  int pendingCount() {
+    return this.pending.size();
+  }
+
+  /**
+   * Sends the queued results in bulk requests, one at a time, until the queue is empty.
+   */
+  void flush() {
+    if (this.pending.isEmpty() || !this.flushing.compareAndSet(false, true)) {
+      return;
+    }
+    final BulkRequest bulk = new BulkRequest();
+    IndexRequest request;
+    while (bulk.numberOfActions() < this.bulkSize && (request = this.pending.poll()) != null) {
+      bulk.add(request);
+    }
+    if (bulk.numberOfActions() == 0) {
+      this.flushing.set(false);
+      return;
+    }
+
+    if (this.indexCreated) {
+      sendBulk(bulk);
+      return;
+    }
+    final CreateIndexRequest create = new CreateIndexRequest(INDEX)
+        .settings(Settings.builder().put("index.number_of_shards", 1).put("index.auto_expand_replicas", "0-all"))
+        .mapping(TYPE, MAPPING, XContentType.JSON);
+    try (ThreadContext.StoredContext ignored = stashContext()) {
+      this.client.admin().indices().create(create, ActionListener.wrap(response -> {
+        this.indexCreated = true;
+        sendBulk(bulk);
+      }, e -> {
+        if (ExceptionsHelper.unwrapCause(e) instanceof ResourceAlreadyExistsException) {
+          this.indexCreated = true;
+          sendBulk(bulk);
+        } else {
+          this.logger.warn(
+              new ParameterizedMessage("Unable to create the shared geocoding cache index [{}].", INDEX), e);
+          this.flushing.set(false);
+        }
+      }));
+    }
+  }
+
+  private void sendBulk(BulkRequest bulk) {
+    try (ThreadContext.StoredContext ignored = stashContext()) {
+      this.client.bulk(bulk, new ActionListener<BulkResponse>() {
+        @Override
+        public void onResponse(BulkResponse response) {
+          if (response.hasFailures()) {
+            GeocodingIndexCache.this.logger.debug("Unable to write some shared geocoding results: {}",
+                response.buildFailureMessage());
+          }
+          flushed();
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+          GeocodingIndexCache.this.logger.debug("Unable to write the shared geocoding results.", e);
+          flushed();
+        }
+      });
+    }
+  }
+
+  private void flushed() {
+    this.flushing.set(false);
+    if (this.pending.size() >= this.bulkSize) {
+      this.threadPool.generic().execute(this::flush);
+    }
+  }
+
+  /**
+   * Runs index operations as the node itself rather than as the user of the ingest request.
+   */
+  private ThreadContext.StoredContext stashContext() {
+    return this.threadPool.getThreadContext().stashContext();
+  }
+
+  @Override
+  public void close() {
+    final Scheduler.Cancellable flushTask = this.flushTask;
+    if (flushTask != null) {
+      flushTask.cancel();
+    }
+  }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import com.google.maps.errors.ApiException;
+import com.google.maps.errors.OverDailyLimitException;
+import com.google.maps.errors.OverQueryLimitException;
+import com.google.maps.errors.RequestDeniedException;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Geocoding API keys used by this node, each with its own rate limit and daily budget.
+ *
+ * Like the cluster rate limit, the limits of a key apply to the whole cluster and are split evenly between its ingest
+ * nodes. Each request is sent with the least loaded key, relative to its rate limit, among the keys which have a
+ * permit available; when none has, the request waits for the earliest permit, up to the maximum wait of the rate
+ * limiter. A key rejected by the API for exceeding its quota or being denied is taken out of rotation for the
+ * configured cooldown, except the last available key exceeding its query rate, which the API also reports for short
+ * bursts: its requests are retried with a backoff instead.
+ */
+class GeocodingKeyPool implements ClusterStateListener {
+
+  /**
+   * Daily quotas of the Geocoding API are reset at midnight Pacific Time.
+   */
+  private static final ZoneId QUOTA_ZONE = ZoneId.of("America/Los_Angeles");
+
+  /**
+   * An API key and its usage on this node; mutable state is guarded by the pool.
+   */
+  static final class Key {
+
+    private final String name;
+    private final String value;
+    private final double clusterQps;
+    private final long clusterDailyLimit;
+
+    // tokens per nanosecond; zero means unlimited
+    private double rate;
+    private double burst;
+    private double tokens;
+    private long lastRefill;
+    // zero means unlimited
+    private long dailyLimit;
+    private long day;
+    private long used;
+    private long cooldownUntil;
+    private boolean coolingDown;
+    private int inFlight;
+
+    Key(String name, String value, double clusterQps, long clusterDailyLimit) {
+      this.name = name;
+      this.value = value;
+      this.clusterQps = clusterQps;
+      this.clusterDailyLimit = clusterDailyLimit;
+    }
+
+    String getName() {
+      return this.name;
+    }
+
+    String getValue() {
+      return this.value;
+    }
+
+    private void setIngestNodes(int ingestNodes) {
+      final double nodeQps = this.clusterQps / ingestNodes;
+      this.rate = nodeQps / TimeUnit.SECONDS.toNanos(1);
+      this.burst = Math.max(1, nodeQps);
+      this.tokens = Math.min(this.tokens, this.burst);
+      this.dailyLimit = this.clusterDailyLimit == 0 ? 0 : Math.max(1, this.clusterDailyLimit / ingestNodes);
+    }
+
+    private boolean isAvailable(long now, long day) {
+      if (this.coolingDown) {
+        if (now - this.cooldownUntil < 0) {
+          return false;
+        }
+        this.coolingDown = false;
+      }
+      if (this.day != day) {
+        this.day = day;
+        this.used = 0;
+      }
+      return this.dailyLimit == 0 || this.used < this.dailyLimit;
+    }
+
+    private void refill(long now) {
+      if (this.rate > 0) {
+        this.tokens = Math.min(this.burst, this.tokens + (now - this.lastRefill) * this.rate);
+      }
+      this.lastRefill = now;
+    }
+
+    /**
+     * @return How long to wait before a permit is available, in nanoseconds.
+     */
+    private long waitNanos(long now) {
+      if (this.rate <= 0) {
+        return 0;
+      }
+      refill(now);
+      return this.tokens >= 1 ? 0 : (long) Math.ceil((1 - this.tokens) / this.rate);
+    }
+
+    /**
+     * @return The number of requests in flight with this key, relative to its rate limit.
+     */
+    private double load() {
+      return this.clusterQps > 0 ? this.inFlight / this.clusterQps : this.inFlight;
+    }
+
+  }
+
+  private final Logger logger;
+  private final Key[] keys;
+  private final long cooldownNanos;
+  private final long maxWaitNanos;
+  private int next;
+
+  GeocodingKeyPool(Settings settings) {
+    this.logger = Loggers.getLogger(getClass(), settings);
+    this.cooldownNanos = IngestGeocodingPlugin.API_KEYS_COOLDOWN.get(settings).nanos();
+    this.maxWaitNanos = IngestGeocodingPlugin.RATE_LIMIT_MAX_WAIT.get(settings).nanos();
+
+    final List<Key> keys = new ArrayList<>();
+    final Set<String> names = new TreeSet<>(IngestGeocodingPlugin.API_KEYS.getNamespaces(settings));
+    for (String name : names) {
+      keys.add(new Key(name,
+          IngestGeocodingPlugin.API_KEYS.getConcreteSettingForNamespace(name).get(settings),
+          IngestGeocodingPlugin.API_KEYS_QPS.getConcreteSettingForNamespace(name).get(settings),
+          IngestGeocodingPlugin.API_KEYS_DAILY_LIMIT.getConcreteSettingForNamespace(name).get(settings)));
+    }
+    if (keys.isEmpty()) {
+      keys.add(new Key("default", IngestGeocodingPlugin.API_KEY.get(settings), 0, 0));
+    }
+    this.keys = keys.toArray(new Key[keys.size()]);
+
+    final long now = System.nanoTime();
+    for (Key key : this.keys) {
+      key.lastRefill = now;
+      key.setIngestNodes(1);
+      key.tokens = key.burst;
+    }
+  }
+
+  @Override
+  public void clusterChanged(ClusterChangedEvent event) {
+    if (event.nodesChanged() || event.previousState().nodes().getIngestNodes().isEmpty()) {
+      setIngestNodes(event.state().nodes().getIngestNodes().size());
+    }
+  }
+
+  synchronized void setIngestNodes(int ingestNodes) {
+    for (Key key : this.keys) {
+      key.setIngestNodes(Math.max(1, ingestNodes));
+    }
+  }
+
+  int size() {
+    return this.keys.length;
+  }
+
+  /**
+   * Takes a permit from the least loaded available key, waiting until it is due.
+   *
+   * @return The key to send the request with; it must be handed back to {@link #release(Key, Exception)} once the
+   *     request completes.
+   * @throws OverQueryLimitException If all the keys are cooling down, have exhausted their daily budget or would
+   *     not have a permit available within the maximum wait.
+   */
+  Key acquire() throws ApiException {
+    final long now = System.nanoTime();
+    final Key key;
+    final long wait;
+    synchronized (this) {
+      key = select(now, epochDay(System.currentTimeMillis()));
+      if (key == null) {
+        throw new OverQueryLimitException("All the API keys are over their quota.");
+      }
+      wait = take(key, now);
+    }
+    if (wait > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return key;
+  }
+
+  /**
+   * @return The available key with a permit due the soonest, within the maximum wait, and the lowest load; keys
+   *     are scanned from the one after the last selected key, so that ties are broken round-robin.
+   */
+  synchronized Key select(long now, long day) {
+    Key selected = null;
+    long selectedWait = 0;
+    int selectedIndex = 0;
+    for (int i = 0; i < this.keys.length; i++) {
+      final int index = (this.next + i) % this.keys.length;
+      final Key key = this.keys[index];
+      if (!key.isAvailable(now, day)) {
+        continue;
+      }
+      final long wait = key.waitNanos(now);
+      if (wait > this.maxWaitNanos) {
+        continue;
+      }
+      if (selected == null || wait < selectedWait || (wait == selectedWait && key.load() < selected.load())) {
+        selected = key;
+        selectedWait = wait;
+        selectedIndex = index;
+      }
+    }
+    if (selected != null) {
+      this.next = (selectedIndex + 1) % this.keys.length;
+    }
+    return selected;
+  }
+
+  /**
+   * Takes a permit from the specified key, possibly in advance, and counts the request against its budget.
+   *
+   * @return How long to wait before the permit is due, in nanoseconds.
+   */
+  synchronized long take(Key key, long now) {
+    final long wait = key.waitNanos(now);
+    if (key.rate > 0) {
+      key.tokens -= 1;
+    }
+    key.used++;
+    key.inFlight++;
+    return wait;
+  }
+
+  /**
+   * Hands a key back once its request completes, taking it out of rotation if the API rejected it.
+   *
+   * @param failure - The error the request failed with, or null if it succeeded.
+   */
+  void release(Key key, Exception failure) {
+    release(key, failure, System.nanoTime());
+  }
+
+  synchronized void release(Key key, Exception failure, long now) {
+    key.inFlight--;
+    if (failure instanceof OverQueryLimitException && !hasOtherAvailableKey(key, now)) {
+      return;
+    }
+    if (isKeyError(failure) && !key.coolingDown) {
+      key.coolingDown = true;
+      key.cooldownUntil = now + this.cooldownNanos;
+      this.logger.warn("API key [{}] was rejected by the Geocoding API, it will not be used for [{}ms]: {}",
+          key.name, TimeUnit.NANOSECONDS.toMillis(this.cooldownNanos), failure.getMessage());
+    }
+  }
+
+  private boolean hasOtherAvailableKey(Key key, long now) {
+    for (Key other : this.keys) {
+      if (other != key && (!other.coolingDown || now - other.cooldownUntil >= 0)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the specified error is caused by the key a request was sent with rather than by the request.
+   */
+  static boolean isKeyError(Exception e) {
+    return e instanceof OverQueryLimitException || e instanceof OverDailyLimitException
+        || e instanceof RequestDeniedException;
+  }
+
+  static long epochDay(long millis) {
+    return Instant.ofEpochMilli(millis).atZone(QUOTA_ZONE).toLocalDate().toEpochDay();
+  }
+
+}
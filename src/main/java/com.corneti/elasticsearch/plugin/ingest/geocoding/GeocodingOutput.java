@@ -16,38 +16,139 @@
  */
 package com.corneti.elasticsearch.plugin.ingest.geocoding;
 
+import org.elasticsearch.common.geo.GeoHashUtils;
+
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Simplified output of a Geocoding API request.
+ *
+ * Outputs are cached and shared by all the documents with the same address, so coordinates are boxed once, when the
+ * output is created, rather than each time they are written to a document; geohash cells are likewise computed once
+ * per precision, the first time they are written.
  */
 class GeocodingOutput {
 
-  private Double latitude;
-  private Double longitude;
-  private List<String> errors;
+  private final boolean hasLocation;
+  private final double latitude;
+  private final double longitude;
+  private final Double boxedLatitude;
+  private final Double boxedLongitude;
+  // by precision, computed on first use; a race only computes the same value twice
+  private final String[] geohashes;
+  private final Long[] geohashCells;
+  private final List<String> errors;
+  private final boolean deterministic;
 
-  GeocodingOutput(Double latitude, Double longitude) {
+  GeocodingOutput(double latitude, double longitude) {
+    this.hasLocation = true;
     this.latitude = latitude;
     this.longitude = longitude;
+    this.boxedLatitude = latitude;
+    this.boxedLongitude = longitude;
+    this.geohashes = new String[GeoHashUtils.PRECISION + 1];
+    this.geohashCells = new Long[GeoHashUtils.PRECISION + 1];
     this.errors = Collections.emptyList();
+    this.deterministic = false;
   }
 
   GeocodingOutput(Throwable t) {
-    this.errors = Collections.singletonList(t.getMessage());
+    this(t, false);
+  }
+
+  /**
+   * @param t - The error.
+   * @param deterministic - Whether the error is caused by the address itself, so that geocoding it again would fail
+   *     the same way.
+   */
+  GeocodingOutput(Throwable t, boolean deterministic) {
+    this(Collections.singletonList(t.getMessage()), deterministic);
+  }
+
+  private GeocodingOutput(List<String> errors, boolean deterministic) {
+    this.hasLocation = false;
+    this.latitude = Double.NaN;
+    this.longitude = Double.NaN;
+    this.boxedLatitude = null;
+    this.boxedLongitude = null;
+    this.geohashes = null;
+    this.geohashCells = null;
+    this.errors = errors;
+    this.deterministic = deterministic;
+  }
+
+  /**
+   * @return An output with neither a location nor errors.
+   */
+  static GeocodingOutput empty() {
+    return new GeocodingOutput(Collections.<String>emptyList(), false);
+  }
+
+  boolean hasLocation() {
+    return hasLocation;
   }
 
-  Double getLatitude() {
+  /**
+   * @return The latitude, or NaN if there is no location.
+   */
+  double getLatitude() {
     return latitude;
   }
 
-  Double getLongitude() {
+  /**
+   * @return The longitude, or NaN if there is no location.
+   */
+  double getLongitude() {
     return longitude;
   }
 
+  /**
+   * @return A new geo point object holding the location, which must exist.
+   */
+  Map<String, Object> toGeoPoint() {
+    final Map<String, Object> geoPoint = new HashMap<>(4);
+    geoPoint.put("lat", boxedLatitude);
+    geoPoint.put("lon", boxedLongitude);
+    return geoPoint;
+  }
+
+  /**
+   * @param precision - A precision between 1 and {@link GeoHashUtils#PRECISION}.
+   * @return The geohash of the cell of the specified precision containing the location, which must exist.
+   */
+  String getGeohash(int precision) {
+    String geohash = geohashes[precision];
+    if (geohash == null) {
+      geohash = GeoHashUtils.stringEncode(getGeohashCell(precision));
+      geohashes[precision] = geohash;
+    }
+    return geohash;
+  }
+
+  /**
+   * @param precision - A precision between 1 and {@link GeoHashUtils#PRECISION}.
+   * @return The cell of the specified precision containing the location, which must exist, packed in a long the
+   *     same way as the keys of {@code geohash_grid} aggregations: the interleaved bits of the geohash followed by
+   *     its precision in the lowest 4 bits.
+   */
+  Long getGeohashCell(int precision) {
+    Long cell = geohashCells[precision];
+    if (cell == null) {
+      cell = GeoHashUtils.longEncode(longitude, latitude, precision);
+      geohashCells[precision] = cell;
+    }
+    return cell;
+  }
+
   List<String> getErrors() {
     return errors;
   }
 
+  boolean isDeterministicError() {
+    return deterministic;
+  }
+
 }
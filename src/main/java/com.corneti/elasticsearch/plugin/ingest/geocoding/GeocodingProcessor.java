@@ -17,34 +17,112 @@
 
 package com.corneti.elasticsearch.plugin.ingest.geocoding;
 
+import org.elasticsearch.common.geo.GeoHashUtils;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.ingest.AbstractProcessor;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Processor;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import static org.elasticsearch.ingest.ConfigurationUtils.newConfigurationException;
+import static org.elasticsearch.ingest.ConfigurationUtils.readBooleanProperty;
+import static org.elasticsearch.ingest.ConfigurationUtils.readOptionalList;
+import static org.elasticsearch.ingest.ConfigurationUtils.readOptionalStringProperty;
 import static org.elasticsearch.ingest.ConfigurationUtils.readStringProperty;
 
 public class GeocodingProcessor extends AbstractProcessor {
 
   public static final String TYPE = "geocoding";
 
+  static final TimeValue DEFAULT_TIMEOUT = TimeValue.timeValueSeconds(10);
+
+  private static final int[] NO_PRECISIONS = new int[0];
+
+  /**
+   * What to do with documents whose lookup is rejected because too many lookups are outstanding on the node.
+   */
+  enum OverloadPolicy {
+    /**
+     * Fails the document with a rejection, so that the client can retry it later.
+     */
+    FAIL,
+    /**
+     * Indexes the document without coordinates and with an error under the target field.
+     */
+    SKIP,
+    /**
+     * Indexes the document with the location found in the persistent store, even if it has expired, or skips it if
+     * there is none.
+     */
+    STALE
+  }
+
   private final GeocodingService geocodingService;
   private final String addressField;
-  private final String coordinatesField;
-  private final String longitudeField;
-  private final String latitudeField;
-  private final String errorsField;
+  private final FieldPath addressPath;
+  private final FieldPath coordinatesPath;
+  private final FieldPath errorsPath;
+  private final FieldPath addressHashPath;
+  private final FieldPath pendingPath;
+  private final TimeValue timeout;
+  private final boolean skipUnchanged;
+  private final TimeValue latencyBudget;
+  private final int[] geohashPrecisions;
+  private final FieldPath[] geohashPaths;
+  private final boolean geohashCells;
+  private final OverloadPolicy overloadPolicy;
 
   public GeocodingProcessor(GeocodingService geocodingService, String tag, String addressField, String targetField) {
+    this(geocodingService, tag, addressField, targetField, DEFAULT_TIMEOUT, false, null, NO_PRECISIONS, false,
+        OverloadPolicy.SKIP);
+  }
+
+  /**
+   * Creates a processor with all its options; processors configured in pipelines are created by the {@link Factory}.
+   *
+   * @param skipUnchanged - Whether to store the fingerprint of geocoded addresses next to the coordinates, and skip
+   *     documents whose address still has the stored fingerprint.
+   * @param latencyBudget - If not null, how long to wait for a lookup before indexing the document with a pending
+   *     marker and letting the {@link GeocodingBackfill} write its coordinates later.
+   * @param geohashPrecisions - The precisions of the geohash cells containing the coordinates to store in the
+   *     {@code geohash_<precision>} fields of the target field.
+   * @param geohashCells - Whether to store geohash cells as longs packed like the keys of {@code geohash_grid}
+   *     aggregations rather than as geohash strings.
+   * @param overloadPolicy - What to do with documents whose lookup is rejected because the node is overloaded.
+   */
+  GeocodingProcessor(GeocodingService geocodingService, String tag, String addressField, String targetField,
+                     TimeValue timeout, boolean skipUnchanged, TimeValue latencyBudget, int[] geohashPrecisions,
+                     boolean geohashCells, OverloadPolicy overloadPolicy) {
     super(tag);
     this.geocodingService = geocodingService;
+    this.timeout = timeout;
+    this.skipUnchanged = skipUnchanged;
+    this.latencyBudget = latencyBudget;
     this.addressField = addressField;
-    this.coordinatesField = targetField + ".coordinates";
-    this.latitudeField = this.coordinatesField + ".lat";
-    this.longitudeField = this.coordinatesField + ".lon";
-    this.errorsField = targetField + "._errors";
+    this.addressPath = new FieldPath(addressField);
+    this.coordinatesPath = new FieldPath(targetField + ".coordinates");
+    this.errorsPath = new FieldPath(targetField + "._errors");
+    this.addressHashPath = new FieldPath(targetField + ".address_hash");
+    this.pendingPath = new FieldPath(targetField + ".pending");
+    this.geohashPrecisions = geohashPrecisions;
+    this.geohashPaths = new FieldPath[geohashPrecisions.length];
+    for (int i = 0; i < geohashPrecisions.length; i++) {
+      this.geohashPaths[i] = new FieldPath(targetField + ".geohash_" + geohashPrecisions[i]);
+    }
+    this.geohashCells = geohashCells;
+    this.overloadPolicy = overloadPolicy;
   }
 
   @Override
@@ -52,36 +130,286 @@ public class GeocodingProcessor extends AbstractProcessor {
     if (ingestDocument == null) {
       return;
     }
-    if (!ingestDocument.hasField(addressField)) {
+    final Object value = this.addressPath.get(ingestDocument);
+    if (value == FieldPath.MISSING) {
+      return;
+    }
+    if (value instanceof List) {
+      final GeocodingStats stats = this.geocodingService.getStats();
+      final long start = System.nanoTime();
+      stats.increment(GeocodingStats.Counter.DOCUMENTS);
+      try {
+        geocodeAll(ingestDocument, (List<?>) value, stats);
+      } finally {
+        stats.record(GeocodingStats.Timer.PROCESSOR, System.nanoTime() - start);
+      }
+      return;
+    }
+    if (value != null && !(value instanceof String)) {
+      this.errorsPath.set(ingestDocument, Collections.singletonList(castError(value)));
+      return;
+    }
+
+    final String address = (String) value;
+    if (address == null || isBlank(address)) {
+      this.coordinatesPath.set(ingestDocument, null);
+      return;
+    }
+
+    final GeocodingStats stats = this.geocodingService.getStats();
+    final long start = System.nanoTime();
+    stats.increment(GeocodingStats.Counter.DOCUMENTS);
+    final AddressFingerprint fingerprint = AddressFingerprint.of(address);
+    if (this.skipUnchanged && isUnchanged(ingestDocument, fingerprint)) {
+      stats.increment(GeocodingStats.Counter.SKIPPED_UNCHANGED);
+      return;
+    }
+    try {
+      geocode(ingestDocument, fingerprint, address, stats);
+    } finally {
+      stats.record(GeocodingStats.Timer.PROCESSOR, System.nanoTime() - start);
+    }
+  }
+
+  private String castError(Object value) {
+    return "field [" + this.addressField + "] of type [" + value.getClass().getName() + "] cannot be cast to ["
+        + String.class.getName() + "]";
+  }
+
+  /**
+   * Same as {@code address.trim().isEmpty()}, without copying the address.
+   */
+  private static boolean isBlank(String address) {
+    for (int i = 0; i < address.length(); i++) {
+      if (address.charAt(i) > ' ') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the document was already geocoded and its address has not changed since.
+   */
+  private boolean isUnchanged(IngestDocument ingestDocument, AddressFingerprint fingerprint) {
+    final Object addressHash = this.addressHashPath.get(ingestDocument);
+    if (!(addressHash instanceof String)) {
+      return false;
+    }
+    final Object coordinates = this.coordinatesPath.get(ingestDocument);
+    return coordinates instanceof Map && ((Map<?, ?>) coordinates).containsKey("lat")
+        && fingerprint.matches((String) addressHash);
+  }
+
+  private void geocode(IngestDocument ingestDocument, AddressFingerprint fingerprint, String address,
+                       GeocodingStats stats) {
+    final GeocodingOutput cached = this.geocodingService.getCached(fingerprint);
+    if (cached != null) {
+      apply(ingestDocument, fingerprint, cached == GeocodingCache.NO_MATCH ? null : cached, stats);
       return;
     }
 
-    final String address;
+    final CompletableFuture<GeocodingOutput> future = this.geocodingService.geocodeAsync(fingerprint, address);
+    GeocodingOutput output;
     try {
-      address = ingestDocument.getFieldValue(addressField, String.class, true);
-    } catch (Throwable t) {
-      ingestDocument.setFieldValue(this.errorsField, Collections.singletonList(t.getMessage()));
+      if (this.latencyBudget != null && !future.isDone()) {
+        try {
+          output = future.get(this.latencyBudget.millis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          if (defer(ingestDocument, fingerprint, future)) {
+            stats.increment(GeocodingStats.Counter.DEFERRED);
+            this.pendingPath.set(ingestDocument, true);
+            return;
+          }
+          output = future.get(Math.max(this.timeout.millis() - this.latencyBudget.millis(), 0), TimeUnit.MILLISECONDS);
+        }
+      } else {
+        output = future.get(this.timeout.millis(), TimeUnit.MILLISECONDS);
+      }
+    } catch (TimeoutException e) {
+      stats.increment(GeocodingStats.Counter.TIMEOUTS);
+      stats.increment(GeocodingStats.Counter.DOCUMENTS_WITH_ERRORS);
+      this.errorsPath.set(ingestDocument,
+          Collections.singletonList("Geocoding timed out after [" + this.timeout + "]."));
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      stats.increment(GeocodingStats.Counter.DOCUMENTS_WITH_ERRORS);
+      this.errorsPath.set(ingestDocument, Collections.singletonList("Geocoding was interrupted."));
       return;
+    } catch (ExecutionException e) {
+      stats.increment(GeocodingStats.Counter.DOCUMENTS_WITH_ERRORS);
+      this.errorsPath.set(ingestDocument, Collections.singletonList(e.getCause().getMessage()));
+      return;
+    }
+    if (output == GeocodingService.OVERLOADED) {
+      output = shed(fingerprint, stats);
+    }
+    apply(ingestDocument, fingerprint, output, stats);
+  }
+
+  /**
+   * Applies the overload policy to an address whose lookup was rejected.
+   *
+   * @return The output to write instead of the rejected lookup.
+   * @throws EsRejectedExecutionException If the document must be failed.
+   */
+  private GeocodingOutput shed(AddressFingerprint fingerprint, GeocodingStats stats) {
+    stats.increment(GeocodingStats.Counter.SHED);
+    if (this.overloadPolicy == OverloadPolicy.FAIL) {
+      stats.increment(GeocodingStats.Counter.DOCUMENTS_WITH_ERRORS);
+      throw new EsRejectedExecutionException("Geocoding rejected, too many lookups are outstanding.");
+    }
+    if (this.overloadPolicy == OverloadPolicy.STALE) {
+      final GeocodingOutput stale = this.geocodingService.getStale(fingerprint);
+      if (stale != null) {
+        stats.increment(GeocodingStats.Counter.SERVED_STALE);
+        return stale;
+      }
+    }
+    return GeocodingService.OVERLOADED;
+  }
+
+  /**
+   * Geocodes the addresses of a list field: each distinct address is looked up once, all of them concurrently, and
+   * the locations found are written as a list of geo points, in the order of the addresses, along with the errors
+   * of all the lookups.
+   */
+  private void geocodeAll(IngestDocument ingestDocument, List<?> values, GeocodingStats stats) {
+    final Map<AddressFingerprint, CompletableFuture<GeocodingOutput>> lookups = new LinkedHashMap<>();
+    for (Object value : values) {
+      if (value == null) {
+        continue;
+      }
+      if (!(value instanceof String)) {
+        this.errorsPath.set(ingestDocument, Collections.singletonList(castError(value)));
+        return;
+      }
+      final String address = (String) value;
+      if (isBlank(address)) {
+        continue;
+      }
+      final AddressFingerprint fingerprint = AddressFingerprint.of(address);
+      if (!lookups.containsKey(fingerprint)) {
+        final GeocodingOutput cached = this.geocodingService.getCached(fingerprint);
+        lookups.put(fingerprint, cached == null ? this.geocodingService.geocodeAsync(fingerprint, address)
+            : CompletableFuture.completedFuture(cached == GeocodingCache.NO_MATCH ? null : cached));
+      }
+    }
+
+    final long deadline = System.nanoTime() + this.timeout.nanos();
+    final List<GeocodingOutput> locations = new ArrayList<>(lookups.size());
+    final List<String> errors = new ArrayList<>();
+    boolean timedOut = false;
+    for (Map.Entry<AddressFingerprint, CompletableFuture<GeocodingOutput>> lookup : lookups.entrySet()) {
+      GeocodingOutput output;
+      try {
+        output = lookup.getValue().get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        timedOut = true;
+        errors.add("Geocoding timed out after [" + this.timeout + "].");
+        continue;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        errors.add("Geocoding was interrupted.");
+        break;
+      } catch (ExecutionException e) {
+        errors.add(e.getCause().getMessage());
+        continue;
+      }
+      if (output == GeocodingService.OVERLOADED) {
+        output = shed(lookup.getKey(), stats);
+      }
+      if (output != null) {
+        errors.addAll(output.getErrors());
+        if (output.hasLocation()) {
+          locations.add(output);
+        }
+      }
     }
 
-    if (address == null || address.trim().equals("")) {
-      ingestDocument.setFieldValue(this.coordinatesField, null);
+    if (timedOut) {
+      stats.increment(GeocodingStats.Counter.TIMEOUTS);
+    }
+    if (errors.size() > 0) {
+      stats.increment(GeocodingStats.Counter.DOCUMENTS_WITH_ERRORS);
+      this.errorsPath.set(ingestDocument, errors);
+    }
+    if (locations.isEmpty()) {
+      this.coordinatesPath.set(ingestDocument, null);
       return;
     }
+    final List<Object> geoPoints = new ArrayList<>(locations.size());
+    for (GeocodingOutput location : locations) {
+      geoPoints.add(location.toGeoPoint());
+    }
+    this.coordinatesPath.set(ingestDocument, geoPoints);
+    for (int i = 0; i < this.geohashPaths.length; i++) {
+      final int precision = this.geohashPrecisions[i];
+      final List<Object> cells = new ArrayList<>(locations.size());
+      for (GeocodingOutput location : locations) {
+        cells.add(this.geohashCells ? location.getGeohashCell(precision) : location.getGeohash(precision));
+      }
+      this.geohashPaths[i].set(ingestDocument, cells);
+    }
+  }
+
+  /**
+   * Queues the document to be updated by the {@link GeocodingBackfill} once its lookup completes.
+   *
+   * @return false if the document cannot be deferred, because it has no id or the backfill queue is full.
+   */
+  private boolean defer(IngestDocument ingestDocument, AddressFingerprint fingerprint,
+                        CompletableFuture<GeocodingOutput> future) {
+    final GeocodingBackfill backfill = this.geocodingService.getBackfill();
+    final Map<String, Object> metadata = ingestDocument.getSourceAndMetadata();
+    final Object id = metadata.get(IngestDocument.MetaData.ID.getFieldName());
+    if (backfill == null || id == null) {
+      return false;
+    }
+    final Object routing = metadata.get(IngestDocument.MetaData.ROUTING.getFieldName());
+    return backfill.defer(new GeocodingBackfill.Entry(
+        metadata.get(IngestDocument.MetaData.INDEX.getFieldName()).toString(),
+        metadata.get(IngestDocument.MetaData.TYPE.getFieldName()).toString(),
+        id.toString(),
+        routing == null ? null : routing.toString(),
+        future,
+        output -> backfillDocument(fingerprint, output)));
+  }
+
+  /**
+   * @return The partial document replacing the pending marker of a deferred document with the output of its lookup.
+   */
+  private Map<String, Object> backfillDocument(AddressFingerprint fingerprint, GeocodingOutput output) {
+    final IngestDocument document = new IngestDocument(new HashMap<>(), new HashMap<>());
+    this.pendingPath.set(document, false);
+    apply(document, fingerprint, output, this.geocodingService.getStats());
+    return document.getSourceAndMetadata();
+  }
 
-    final GeocodingOutput output = this.geocodingService.geocode(address);
+  /**
+   * Writes the output of a lookup to the target field.
+   */
+  private void apply(IngestDocument ingestDocument, AddressFingerprint fingerprint, GeocodingOutput output,
+                     GeocodingStats stats) {
     if (output == null) {
-      ingestDocument.setFieldValue(this.coordinatesField, null);
+      this.coordinatesPath.set(ingestDocument, null);
       return;
     }
     if (output.getErrors().size() > 0) {
-      ingestDocument.setFieldValue(this.errorsField, output.getErrors());
+      stats.increment(GeocodingStats.Counter.DOCUMENTS_WITH_ERRORS);
+      this.errorsPath.set(ingestDocument, output.getErrors());
     }
-    if (output.getLatitude() != null) {
-      ingestDocument.setFieldValue(this.latitudeField, output.getLatitude());
-    }
-    if (output.getLongitude() != null) {
-      ingestDocument.setFieldValue(this.longitudeField, output.getLongitude());
+    if (output.hasLocation()) {
+      this.coordinatesPath.set(ingestDocument, output.toGeoPoint());
+      for (int i = 0; i < this.geohashPaths.length; i++) {
+        final int precision = this.geohashPrecisions[i];
+        this.geohashPaths[i].set(ingestDocument,
+            this.geohashCells ? output.getGeohashCell(precision) : output.getGeohash(precision));
+      }
+      if (this.skipUnchanged) {
+        this.addressHashPath.set(ingestDocument, fingerprint.toString());
+      }
     }
   }
 
@@ -102,8 +430,50 @@ public class GeocodingProcessor extends AbstractProcessor {
     public GeocodingProcessor create(Map<String, Processor.Factory> factories, String tag, Map<String, Object> config) {
       String field = readStringProperty(TYPE, tag, config, "field");
       String targetField = readStringProperty(TYPE, tag, config, "target_field", "location");
+      TimeValue timeout = TimeValue.parseTimeValue(
+          readStringProperty(TYPE, tag, config, "timeout", DEFAULT_TIMEOUT.getStringRep()), "timeout");
+      boolean skipUnchanged = readBooleanProperty(TYPE, tag, config, "skip_unchanged", false);
+      String latencyBudget = readOptionalStringProperty(TYPE, tag, config, "latency_budget");
+      List<Object> geohashPrecisions = readOptionalList(TYPE, tag, config, "geohash_precisions");
+      String geohashFormat = readStringProperty(TYPE, tag, config, "geohash_format", "string");
+      String overloadPolicy = readStringProperty(TYPE, tag, config, "overload_policy", "skip");
+
+      if (!geohashFormat.equals("string") && !geohashFormat.equals("long")) {
+        throw newConfigurationException(TYPE, tag, "geohash_format",
+            "must be [string] or [long], got [" + geohashFormat + "]");
+      }
+      final OverloadPolicy policy;
+      try {
+        policy = OverloadPolicy.valueOf(overloadPolicy.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw newConfigurationException(TYPE, tag, "overload_policy",
+            "must be [fail], [skip] or [stale], got [" + overloadPolicy + "]");
+      }
+      return new GeocodingProcessor(geocodingService, tag, field, targetField, timeout, skipUnchanged,
+          latencyBudget == null ? null : TimeValue.parseTimeValue(latencyBudget, "latency_budget"),
+          parsePrecisions(tag, geohashPrecisions), geohashFormat.equals("long"), policy);
+    }
 
-      return new GeocodingProcessor(geocodingService, tag, field, targetField);
+    private static int[] parsePrecisions(String tag, List<Object> values) {
+      if (values == null) {
+        return NO_PRECISIONS;
+      }
+      final int[] precisions = new int[values.size()];
+      for (int i = 0; i < precisions.length; i++) {
+        final Object value = values.get(i);
+        final int precision;
+        try {
+          precision = value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString());
+        } catch (NumberFormatException e) {
+          throw newConfigurationException(TYPE, tag, "geohash_precisions", e);
+        }
+        if (precision < 1 || precision > GeoHashUtils.PRECISION) {
+          throw newConfigurationException(TYPE, tag, "geohash_precisions",
+              "precisions must be between [1] and [" + GeoHashUtils.PRECISION + "], got [" + value + "]");
+        }
+        precisions[i] = precision;
+      }
+      return precisions;
     }
   }
 
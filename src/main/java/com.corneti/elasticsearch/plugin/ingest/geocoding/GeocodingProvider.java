@@ -0,0 +1,60 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import java.io.Closeable;
+
+/**
+ * A geocoding engine, selected through the {@code ingest.geocoding.provider} setting.
+ *
+ * Implementations must be thread safe, as lookups are performed concurrently by the geocoding thread pool.
+ */
+interface GeocodingProvider extends Closeable {
+
+  /**
+   * Geocodes an address.
+   *
+   * @param address - An address.
+   * @return The {@link GeocodingOutput} for the specified address; if no matches are found, returns null.
+   * @throws Exception if the address could not be geocoded.
+   */
+  GeocodingOutput geocode(String address) throws Exception;
+
+  /**
+   * @return true if lookups are sent over the network, so that they are subject to the rate limit, retries, hedging
+   *     and the circuit breaker.
+   */
+  default boolean isRemote() {
+    return true;
+  }
+
+  /**
+   * @return true if a request that failed with the specified error may succeed if sent again.
+   */
+  default boolean isRetryable(Exception e) {
+    return false;
+  }
+
+  /**
+   * @return true if the specified error is caused by the address itself, so that geocoding it again would fail the
+   *     same way.
+   */
+  default boolean isDeterministic(Exception e) {
+    return false;
+  }
+
+}
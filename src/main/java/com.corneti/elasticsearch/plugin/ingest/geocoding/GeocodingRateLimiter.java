@@ -0,0 +1,147 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting the rate of the geocoding requests sent by this node.
+ *
+ * The rate is this node's share of a cluster-wide budget, split evenly between the ingest nodes of the cluster and
+ * updated whenever nodes join or leave. Callers reserve a permit and wait until it is due, unless the wait would
+ * exceed the configured maximum, in which case they fail fast.
+ */
+class GeocodingRateLimiter implements ClusterStateListener {
+
+  private final GeocodingStats stats;
+  private final long maxWaitNanos;
+  private final double burst;
+
+  private double clusterQps;
+  private int ingestNodes = 1;
+  private double nodeQps;
+
+  // tokens per nanosecond; zero means unlimited
+  private double rate;
+  private double tokens;
+  private long lastRefill;
+
+  GeocodingRateLimiter(Settings settings) {
+    this(settings, new GeocodingStats());
+  }
+
+  GeocodingRateLimiter(Settings settings, GeocodingStats stats) {
+    this.stats = stats;
+    this.maxWaitNanos = IngestGeocodingPlugin.RATE_LIMIT_MAX_WAIT.get(settings).nanos();
+    this.burst = IngestGeocodingPlugin.RATE_LIMIT_BURST.get(settings);
+    this.lastRefill = System.nanoTime();
+    this.tokens = this.burst;
+    setClusterQps(IngestGeocodingPlugin.RATE_LIMIT_CLUSTER_QPS.get(settings));
+  }
+
+  synchronized void setClusterQps(double clusterQps) {
+    this.clusterQps = clusterQps;
+    updateRate();
+  }
+
+  @Override
+  public void clusterChanged(ClusterChangedEvent event) {
+    if (event.nodesChanged() || event.previousState().nodes().getIngestNodes().isEmpty()) {
+      setIngestNodes(event.state().nodes().getIngestNodes().size());
+    }
+  }
+
+  synchronized void setIngestNodes(int ingestNodes) {
+    this.ingestNodes = Math.max(1, ingestNodes);
+    updateRate();
+  }
+
+  /**
+   * @return The number of requests per second this node may send; zero if unlimited.
+   */
+  synchronized double getNodeQps() {
+    return this.nodeQps;
+  }
+
+  /**
+   * Acquires a permit, waiting until it is available if that takes less than the maximum wait.
+   *
+   * @return true if a permit was acquired, false if it would not be available in time or the wait was interrupted.
+   */
+  boolean acquire() {
+    final long wait = reserve(System.nanoTime());
+    if (wait < 0) {
+      return false;
+    }
+    if (wait > 0) {
+      this.stats.increment(GeocodingStats.Counter.RATE_LIMIT_WAITS);
+      this.stats.add(GeocodingStats.Counter.RATE_LIMIT_WAIT_NANOS, wait);
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Acquires a permit only if it is available right away.
+   */
+  boolean tryAcquire() {
+    return reserve(System.nanoTime(), 0) == 0;
+  }
+
+  synchronized long reserve(long now) {
+    return reserve(now, this.maxWaitNanos);
+  }
+
+  /**
+   * Takes a token from the bucket, possibly in advance.
+   *
+   * @return How long to wait before the token is due, in nanoseconds, or -1 if that exceeds the maximum wait and no
+   *     token was taken.
+   */
+  synchronized long reserve(long now, long maxWaitNanos) {
+    if (this.rate <= 0) {
+      return 0;
+    }
+    this.tokens = Math.min(this.burst, this.tokens + (now - this.lastRefill) * this.rate);
+    this.lastRefill = now;
+    if (this.tokens >= 1) {
+      this.tokens -= 1;
+      return 0;
+    }
+    final long wait = (long) Math.ceil((1 - this.tokens) / this.rate);
+    if (wait > maxWaitNanos) {
+      return -1;
+    }
+    this.tokens -= 1;
+    return wait;
+  }
+
+  private void updateRate() {
+    this.nodeQps = this.clusterQps / this.ingestNodes;
+    this.rate = this.nodeQps / TimeUnit.SECONDS.toNanos(1);
+  }
+
+}
@@ -16,75 +16,475 @@
  */
 package com.corneti.elasticsearch.plugin.ingest.geocoding;
 
-import com.google.maps.GeoApiContext;
-import com.google.maps.GeocodingApi;
-import com.google.maps.GeocodingApiRequest;
-import com.google.maps.model.GeocodingResult;
-import com.google.maps.model.Geometry;
 import org.apache.logging.log4j.Logger;
-import org.elasticsearch.SpecialPermission;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
 
 import java.io.IOException;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * This services wraps the Geocoding API used by geocoding processors.
+ * This services wraps the {@link GeocodingProvider} used by geocoding processors.
  */
 public class GeocodingService extends AbstractLifecycleComponent {
 
+  static final String THREAD_POOL_NAME = "geocoding";
+  static final int THREAD_POOL_QUEUE_SIZE = 1000;
+
+  /**
+   * Completes the lookups rejected because the geocoding thread pool and its queue are full.
+   */
+  static final GeocodingOutput OVERLOADED =
+      new GeocodingOutput(new Exception("Geocoding skipped, too many lookups are outstanding."));
+
   private final Logger logger;
-  private GeoApiContext geoApiContext;
+  private final GeocodingStats stats = new GeocodingStats();
+  private final GeocodingCache cache;
+  private final GeocodingRateLimiter rateLimiter;
+  private final ConcurrentMap<AddressFingerprint, CompletableFuture<GeocodingOutput>> inFlight =
+      new ConcurrentHashMap<>();
+  private volatile GeocodingStore store;
+  private volatile GeocodingIndexCache indexCache;
+  private volatile GeocodingBackfill backfill;
+  private volatile ExecutorService executor;
+  private volatile Path snapshotExportFile;
+  private volatile Path snapshotImportFile;
+  private final GeocodingProvider provider;
+  // null if the provider is local
+  private final RetryingGeocodingProvider remoteProvider;
 
   GeocodingService(Settings settings) {
+    this(settings, new GoogleGeocodingProvider(settings));
+  }
+
+  GeocodingService(Settings settings, GeocodingProvider provider) {
     super(settings);
     this.logger = Loggers.getLogger(getClass(), settings);
-    SpecialPermission.check();
-    AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
-      this.geoApiContext = new GeoApiContext.Builder()
-          .apiKey(IngestGeocodingPlugin.API_KEY.get(settings))
-          .disableRetries()
-          .queryRateLimit(10)
-          .build();
-      return null;
-    });
+    this.cache = new GeocodingCache(settings);
+    this.rateLimiter = new GeocodingRateLimiter(settings, this.stats);
+    if (provider.isRemote()) {
+      this.remoteProvider = new RetryingGeocodingProvider(settings, provider, this.rateLimiter, this.stats);
+      this.provider = this.remoteProvider;
+    } else {
+      this.remoteProvider = null;
+      this.provider = provider;
+    }
+  }
+
+  /**
+   * Sets the persistent store checked on cache misses; must be called before the service is started.
+   */
+  void setStore(GeocodingStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Sets the cache shared by the nodes of the cluster, checked on cache misses; must be called before the service is
+   * started.
+   */
+  void setIndexCache(GeocodingIndexCache indexCache) {
+    this.indexCache = indexCache;
+  }
+
+  /**
+   * Sets the worker updating documents indexed before their address was geocoded; must be called before the service
+   * is started.
+   */
+  void setBackfill(GeocodingBackfill backfill) {
+    this.backfill = backfill;
+  }
+
+  /**
+   * @return The backfill worker, or null if documents cannot be deferred.
+   */
+  GeocodingBackfill getBackfill() {
+    return this.backfill;
+  }
+
+  /**
+   * Sets the files cache snapshots are exported to and imported from; must be called before the service is started,
+   * which imports the snapshot if it exists.
+   */
+  void setCacheSnapshotFiles(Path exportFile, Path importFile) {
+    this.snapshotExportFile = exportFile;
+    this.snapshotImportFile = importFile;
+  }
+
+  Path getCacheSnapshotExportFile() {
+    return this.snapshotExportFile;
+  }
+
+  Path getCacheSnapshotImportFile() {
+    return this.snapshotImportFile;
+  }
+
+  /**
+   * Writes the matches of the node cache to the export file.
+   *
+   * @return The number of exported entries.
+   */
+  int exportCache() throws IOException {
+    final GeocodingCacheSnapshot snapshot = this.cache.snapshot();
+    snapshot.write(this.snapshotExportFile);
+    return snapshot.size();
+  }
+
+  /**
+   * Loads the import file in the node cache, replacing the previously imported snapshot.
+   *
+   * @return The number of imported entries.
+   */
+  int importCache() throws IOException {
+    final GeocodingCacheSnapshot snapshot = GeocodingCacheSnapshot.read(this.snapshotImportFile);
+    this.cache.load(snapshot);
+    return snapshot.size();
+  }
+
+  GeocodingStats getStats() {
+    return this.stats;
+  }
+
+  GeocodingRateLimiter getRateLimiter() {
+    return this.rateLimiter;
   }
 
   /**
-   * Calls the Geocoding API.
+   * @return The circuit breaker of the provider, or null if the provider is local.
+   */
+  GeocodingCircuitBreaker getCircuitBreaker() {
+    return this.remoteProvider == null ? null : this.remoteProvider.getCircuitBreaker();
+  }
+
+  /**
+   * Sets the executor running hedged requests.
+   */
+  void setHedgeExecutor(ExecutorService executor) {
+    if (this.remoteProvider != null) {
+      this.remoteProvider.setHedgeExecutor(executor);
+    }
+  }
+
+  /**
+   * Sets the executor running asynchronous lookups; if not set, lookups run on the calling thread.
+   */
+  void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Geocodes an address, serving it from the node cache or the persistent store when possible; addresses are
+   * identified by their {@link AddressFingerprint}, so variants of the same address share the same result.
+   *
+   * Concurrent lookups of the same address are coalesced: the first caller performs the lookup while the others
+   * wait for its outcome, so all of them get the same {@link GeocodingOutput}, errors included.
    *
    * @param address - An address.
    * @return The {@link GeocodingOutput} for the specified address; if no matches are found, returns null.
    */
   GeocodingOutput geocode(String address) {
-    final GeocodingApiRequest request = GeocodingApi.newRequest(this.geoApiContext).address(address);
+    final AddressFingerprint key = AddressFingerprint.of(address);
+    final GeocodingOutput cached = this.cache.get(key);
+    if (cached != null) {
+      return cacheHit(cached);
+    }
+    this.stats.increment(GeocodingStats.Counter.CACHE_MISSES);
 
-    SpecialPermission.check();
-    return AccessController.doPrivileged((PrivilegedAction<GeocodingOutput>) () -> {
-      try {
-        final GeocodingResult[] results = request.await();
-        if (results.length == 0) {
-          return null;
-        }
+    final CompletableFuture<GeocodingOutput> future = new CompletableFuture<>();
+    final CompletableFuture<GeocodingOutput> inFlight = this.inFlight.putIfAbsent(key, future);
+    if (inFlight != null) {
+      this.stats.increment(GeocodingStats.Counter.COALESCED);
+      return join(inFlight);
+    }
+    complete(key, address, future);
+    return join(future);
+  }
 
-        final GeocodingResult result = results[0];
-        final Geometry geometry = result.geometry;
-        if (geometry == null) {
-          return null;
+  /**
+   * Geocodes an address on the geocoding thread pool; cached addresses are returned immediately.
+   *
+   * Concurrent lookups of the same address share the same future.
+   *
+   * @param address - An address.
+   * @return A future completed with the {@link GeocodingOutput} for the specified address, or null if no matches
+   *     are found.
+   */
+  CompletableFuture<GeocodingOutput> geocodeAsync(String address) {
+    return geocodeAsync(AddressFingerprint.of(address), address);
+  }
+
+  /**
+   * Same as {@link #geocodeAsync(String)}, for callers which already computed the fingerprint of the address.
+   */
+  CompletableFuture<GeocodingOutput> geocodeAsync(AddressFingerprint key, String address) {
+    final GeocodingOutput cached = this.cache.get(key);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cacheHit(cached));
+    }
+    this.stats.increment(GeocodingStats.Counter.CACHE_MISSES);
+
+    final CompletableFuture<GeocodingOutput> future = new CompletableFuture<>();
+    final CompletableFuture<GeocodingOutput> inFlight = this.inFlight.putIfAbsent(key, future);
+    if (inFlight != null) {
+      this.stats.increment(GeocodingStats.Counter.COALESCED);
+      return inFlight;
+    }
+
+    final ExecutorService executor = this.executor;
+    if (executor == null) {
+      complete(key, address, future);
+      return future;
+    }
+    // the size and queue of the geocoding thread pool bound the number of outstanding lookups
+    this.stats.add(GeocodingStats.Counter.LOOKUPS_QUEUED, 1);
+    executor.execute(new AbstractRunnable() {
+      @Override
+      protected void doRun() {
+        final GeocodingStats stats = GeocodingService.this.stats;
+        stats.add(GeocodingStats.Counter.LOOKUPS_QUEUED, -1);
+        stats.add(GeocodingStats.Counter.LOOKUPS_RUNNING, 1);
+        try {
+          complete(key, address, future);
+        } finally {
+          stats.add(GeocodingStats.Counter.LOOKUPS_RUNNING, -1);
         }
+      }
 
-        return new GeocodingOutput(result.geometry.location.lat, result.geometry.location.lng);
-      } catch (Throwable t) {
-        return new GeocodingOutput(t);
+      @Override
+      public void onRejection(Exception e) {
+        GeocodingService.this.stats.add(GeocodingStats.Counter.LOOKUPS_QUEUED, -1);
+        GeocodingService.this.stats.increment(GeocodingStats.Counter.LOOKUPS_REJECTED);
+        future.complete(OVERLOADED);
+        GeocodingService.this.inFlight.remove(key, future);
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        future.complete(new GeocodingOutput(e));
+        GeocodingService.this.inFlight.remove(key, future);
       }
     });
+    return future;
+  }
+
+  /**
+   * Geocodes a list of addresses, keeping at most the specified number of lookups outstanding so that a large list
+   * neither fills the queue of the geocoding thread pool nor crowds out the ingest path. Lookups go through the
+   * caches, the rate limiter and the circuit breaker like any other, and each address is cached as soon as its lookup
+   * completes.
+   *
+   * @param addresses - Distinct addresses, with their fingerprints.
+   * @param concurrency - The maximum number of outstanding lookups.
+   * @return A future completed with the {@link GeocodingOutput}s of the addresses, in the same order; addresses
+   *     without matches get null.
+   */
+  CompletableFuture<GeocodingOutput[]> geocodeBulk(List<Map.Entry<AddressFingerprint, String>> addresses,
+                                                   int concurrency) {
+    final BulkLookup bulk = new BulkLookup(addresses);
+    if (addresses.isEmpty()) {
+      bulk.future.complete(bulk.outputs);
+    }
+    for (int i = 0; i < Math.min(concurrency, addresses.size()); i++) {
+      bulk.run();
+    }
+    return bulk.future;
+  }
+
+  /**
+   * A list of addresses looked up by a fixed number of workers; a worker starts the next lookup when the previous one
+   * completes, and goes through cached addresses without waiting.
+   */
+  private final class BulkLookup {
+
+    private final List<Map.Entry<AddressFingerprint, String>> addresses;
+    private final GeocodingOutput[] outputs;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger remaining;
+    private final CompletableFuture<GeocodingOutput[]> future = new CompletableFuture<>();
+
+    BulkLookup(List<Map.Entry<AddressFingerprint, String>> addresses) {
+      this.addresses = addresses;
+      this.outputs = new GeocodingOutput[addresses.size()];
+      this.remaining = new AtomicInteger(addresses.size());
+    }
+
+    void run() {
+      int index;
+      while ((index = this.next.getAndIncrement()) < this.addresses.size()) {
+        final Map.Entry<AddressFingerprint, String> address = this.addresses.get(index);
+        final CompletableFuture<GeocodingOutput> lookup = geocodeAsync(address.getKey(), address.getValue());
+        final int i = index;
+        if (lookup.isDone()) {
+          // cached addresses complete immediately: looping over them instead of chaining avoids deep call stacks
+          lookup.whenComplete((output, e) -> complete(i, output, e));
+        } else {
+          lookup.whenComplete((output, e) -> {
+            complete(i, output, e);
+            run();
+          });
+          return;
+        }
+      }
+    }
+
+    private void complete(int index, GeocodingOutput output, Throwable e) {
+      if (e == null) {
+        this.outputs[index] = output;
+      } else {
+        this.outputs[index] = new GeocodingOutput(e instanceof CompletionException ? e.getCause() : e);
+      }
+      if (this.remaining.decrementAndGet() == 0) {
+        this.future.complete(this.outputs);
+      }
+    }
+
+  }
+
+  /**
+   * Looks an address up in the persistent store, including entries past their time to live which have not been
+   * compacted away yet, so that documents can be served a stale location when lookups are rejected.
+   *
+   * @return The stored {@link GeocodingOutput} for the specified address, or null if there is none.
+   */
+  GeocodingOutput getStale(AddressFingerprint key) {
+    final GeocodingStore store = this.store;
+    return store == null ? null : store.get(key, true);
+  }
+
+  /**
+   * Looks an address up in the node cache only, without allocating, so that cache hits are served without going
+   * through {@link #geocodeAsync(AddressFingerprint, String)}.
+   *
+   * @return The cached {@link GeocodingOutput} for the specified address, {@link GeocodingCache#NO_MATCH} if the
+   *     address is known to have no matches, or null if there is nothing cached for it.
+   */
+  GeocodingOutput getCached(AddressFingerprint key) {
+    final GeocodingOutput cached = this.cache.get(key);
+    if (cached != null) {
+      cacheHit(cached);
+    }
+    return cached;
+  }
+
+  /**
+   * Records a cache hit and converts cached misses back to null.
+   */
+  private GeocodingOutput cacheHit(GeocodingOutput cached) {
+    this.stats.increment(GeocodingStats.Counter.CACHE_HITS);
+    if (cached == GeocodingCache.NO_MATCH) {
+      this.stats.increment(GeocodingStats.Counter.NEGATIVE_CACHE_HITS);
+      return null;
+    }
+    if (cached.isDeterministicError()) {
+      this.stats.increment(GeocodingStats.Counter.ERROR_CACHE_HITS);
+    }
+    return cached;
+  }
+
+  /**
+   * Loads an address and completes the in-flight future registered for it.
+   */
+  private void complete(AddressFingerprint key, String address, CompletableFuture<GeocodingOutput> future) {
+    try {
+      future.complete(load(key, address));
+    } catch (Throwable t) {
+      future.completeExceptionally(t);
+    } finally {
+      this.inFlight.remove(key, future);
+    }
+  }
+
+  private static GeocodingOutput join(CompletableFuture<GeocodingOutput> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      return new GeocodingOutput(e.getCause());
+    }
+  }
+
+  /**
+   * Loads an address from the persistent store, the shared cache or the provider and caches the result, unless it
+   * is a transient error.
+   */
+  private GeocodingOutput load(AddressFingerprint key, String address) {
+    final GeocodingStore store = this.store;
+    if (store != null) {
+      final GeocodingOutput stored = store.get(key);
+      if (stored != null) {
+        this.stats.increment(GeocodingStats.Counter.STORE_HITS);
+        this.cache.put(key, stored);
+        return stored;
+      }
+    }
+    final GeocodingIndexCache indexCache = this.indexCache;
+    if (indexCache != null) {
+      final GeocodingOutput shared = indexCache.get(key);
+      if (shared != null) {
+        this.stats.increment(GeocodingStats.Counter.SHARED_CACHE_HITS);
+        if (store != null) {
+          store.put(key, shared);
+        }
+        this.cache.put(key, shared);
+        return shared;
+      }
+    }
+
+    final GeocodingOutput output = lookup(address);
+    if (store != null) {
+      store.put(key, output);
+    }
+    if (indexCache != null) {
+      indexCache.put(key, output);
+    }
+    this.cache.put(key, output);
+    return output;
+  }
+
+
+  /**
+   * Calls the configured {@link GeocodingProvider}, subject to the rate limit, retries and circuit breaker
+   * if it is remote.
+   *
+   * @param address - An address.
+   * @return The {@link GeocodingOutput} for the specified address; if no matches are found, returns null.
+   */
+  GeocodingOutput lookup(String address) {
+    try {
+      return this.provider.geocode(address);
+    } catch (Exception e) {
+      return new GeocodingOutput(e, this.provider.isDeterministic(e));
+    }
   }
 
   @Override
   protected void doStart() {
+    final Path snapshotImportFile = this.snapshotImportFile;
+    if (snapshotImportFile != null && Files.exists(snapshotImportFile)) {
+      try {
+        this.logger.info("Imported [{}] geocoding cache entries from [{}].", importCache(), snapshotImportFile);
+      } catch (IOException e) {
+        this.logger.warn("Unable to import the geocoding cache snapshot [" + snapshotImportFile + "].", e);
+      }
+    }
+    if (this.store != null) {
+      this.store.start();
+    }
+    if (this.indexCache != null) {
+      this.indexCache.start();
+    }
+    if (this.backfill != null) {
+      this.backfill.start();
+    }
   }
 
   @Override
@@ -93,14 +493,21 @@ public class GeocodingService extends AbstractLifecycleComponent {
 
   @Override
   protected void doClose() throws IOException {
-    if (this.geoApiContext == null) {
-      return;
+    this.cache.invalidateAll();
+    if (this.indexCache != null) {
+      this.indexCache.close();
     }
-    try {
-      this.geoApiContext.shutdown();
-    } catch (Throwable t) {
-      this.logger.info("An error occurred while shutting down the Google Maps API context.", t);
+    if (this.backfill != null) {
+      this.backfill.close();
+    }
+    if (this.store != null) {
+      try {
+        this.store.close();
+      } catch (IOException e) {
+        this.logger.warn("An error occurred while closing the geocoding store.", e);
+      }
     }
+    this.provider.close();
   }
 
 }
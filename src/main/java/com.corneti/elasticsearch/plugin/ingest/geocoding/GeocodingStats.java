@@ -0,0 +1,298 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the geocoding activity of a node.
+ *
+ * Values are recorded in {@link LongAdder}s, which are striped across threads, so that recording does not contend
+ * on the hot path; they are only summed when a {@link Snapshot} is taken.
+ */
+class GeocodingStats {
+
+  enum Counter {
+    DOCUMENTS,
+    DOCUMENTS_WITH_ERRORS,
+    TIMEOUTS,
+    SKIPPED_UNCHANGED,
+    SHED,
+    SERVED_STALE,
+    DEFERRED,
+    BACKFILLED,
+    BACKFILL_FAILURES,
+    CACHE_HITS,
+    CACHE_MISSES,
+    STORE_HITS,
+    SHARED_CACHE_HITS,
+    NEGATIVE_CACHE_HITS,
+    ERROR_CACHE_HITS,
+    COALESCED,
+    // current values rather than totals: incremented and decremented as lookups are queued and run
+    LOOKUPS_QUEUED,
+    LOOKUPS_RUNNING,
+    LOOKUPS_REJECTED,
+    API_CALLS,
+    API_RETRIES,
+    API_HEDGED,
+    RATE_LIMIT_WAITS,
+    RATE_LIMIT_WAIT_NANOS,
+    RATE_LIMITED,
+    CIRCUIT_BREAKER_OPEN,
+    TRANSIENT_ERRORS,
+    OTHER_ERRORS
+  }
+
+  enum Timer {
+    PROCESSOR,
+    API
+  }
+
+  private final LongAdder[] counters = new LongAdder[Counter.values().length];
+  private final Histogram[] timers = new Histogram[Timer.values().length];
+
+  GeocodingStats() {
+    for (int i = 0; i < this.counters.length; i++) {
+      this.counters[i] = new LongAdder();
+    }
+    for (int i = 0; i < this.timers.length; i++) {
+      this.timers[i] = new Histogram();
+    }
+  }
+
+  void increment(Counter counter) {
+    this.counters[counter.ordinal()].increment();
+  }
+
+  void add(Counter counter, long value) {
+    this.counters[counter.ordinal()].add(value);
+  }
+
+  void record(Timer timer, long nanos) {
+    this.timers[timer.ordinal()].record(nanos);
+  }
+
+  Snapshot snapshot() {
+    final long[] counters = new long[this.counters.length];
+    for (int i = 0; i < counters.length; i++) {
+      // sums are not atomic: a gauge decremented on another thread may be read before the matching increment
+      counters[i] = Math.max(0, this.counters[i].sum());
+    }
+    final long[][] histograms = new long[this.timers.length][];
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = this.timers[i].snapshot();
+    }
+    return new Snapshot(counters, histograms);
+  }
+
+  /**
+   * A latency histogram with a bucket per power of two microseconds, followed by the sum of the recorded values.
+   */
+  private static final class Histogram {
+
+    static final int BUCKETS = 32;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+
+    Histogram() {
+      for (int i = 0; i < this.buckets.length; i++) {
+        this.buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long nanos) {
+      final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+      this.buckets[bucket(micros)].increment();
+      this.buckets[BUCKETS].add(micros);
+    }
+
+    long[] snapshot() {
+      final long[] values = new long[this.buckets.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = this.buckets[i].sum();
+      }
+      return values;
+    }
+
+    /**
+     * @return The index of the bucket of values below 2^index microseconds containing the specified value.
+     */
+    static int bucket(long micros) {
+      return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+  }
+
+  /**
+   * A point in time copy of the stats of one or more nodes.
+   */
+  static final class Snapshot implements Writeable, ToXContentFragment {
+
+    private final long[] counters;
+    private final long[][] histograms;
+
+    Snapshot(long[] counters, long[][] histograms) {
+      this.counters = counters;
+      this.histograms = histograms;
+    }
+
+    Snapshot(StreamInput in) throws IOException {
+      this.counters = in.readVLongArray();
+      this.histograms = new long[in.readVInt()][];
+      for (int i = 0; i < this.histograms.length; i++) {
+        this.histograms[i] = in.readVLongArray();
+      }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+      out.writeVLongArray(this.counters);
+      out.writeVInt(this.histograms.length);
+      for (long[] histogram : this.histograms) {
+        out.writeVLongArray(histogram);
+      }
+    }
+
+    static Snapshot empty() {
+      return new GeocodingStats().snapshot();
+    }
+
+    long get(Counter counter) {
+      return counter.ordinal() < this.counters.length ? this.counters[counter.ordinal()] : 0;
+    }
+
+    /**
+     * @return The sum of this snapshot and the specified one.
+     */
+    Snapshot add(Snapshot other) {
+      final long[] counters = new long[Math.max(this.counters.length, other.counters.length)];
+      for (Counter counter : Counter.values()) {
+        counters[counter.ordinal()] = get(counter) + other.get(counter);
+      }
+      final long[][] histograms = new long[this.histograms.length][];
+      for (int i = 0; i < histograms.length; i++) {
+        histograms[i] = this.histograms[i].clone();
+        if (i < other.histograms.length) {
+          for (int j = 0; j < histograms[i].length; j++) {
+            histograms[i][j] += other.histograms[i][j];
+          }
+        }
+      }
+      return new Snapshot(counters, histograms);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+      builder.startObject("processor");
+      builder.field("count", get(Counter.DOCUMENTS));
+      builder.field("errors", get(Counter.DOCUMENTS_WITH_ERRORS));
+      builder.field("timeouts", get(Counter.TIMEOUTS));
+      builder.field("skipped", get(Counter.SKIPPED_UNCHANGED));
+      histogramToXContent(builder, this.histograms[Timer.PROCESSOR.ordinal()]);
+      builder.endObject();
+
+      builder.startObject("admission");
+      builder.field("queued", get(Counter.LOOKUPS_QUEUED));
+      builder.field("running", get(Counter.LOOKUPS_RUNNING));
+      builder.field("rejected", get(Counter.LOOKUPS_REJECTED));
+      builder.field("shed", get(Counter.SHED));
+      builder.field("served_stale", get(Counter.SERVED_STALE));
+      builder.endObject();
+
+      builder.startObject("backfill");
+      builder.field("deferred", get(Counter.DEFERRED));
+      builder.field("updated", get(Counter.BACKFILLED));
+      builder.field("failed", get(Counter.BACKFILL_FAILURES));
+      builder.endObject();
+
+      builder.startObject("cache");
+      builder.field("hits", get(Counter.CACHE_HITS));
+      builder.field("negative_hits", get(Counter.NEGATIVE_CACHE_HITS));
+      builder.field("error_hits", get(Counter.ERROR_CACHE_HITS));
+      builder.field("misses", get(Counter.CACHE_MISSES));
+      builder.field("store_hits", get(Counter.STORE_HITS));
+      builder.field("shared_hits", get(Counter.SHARED_CACHE_HITS));
+      builder.field("coalesced", get(Counter.COALESCED));
+      builder.endObject();
+
+      builder.startObject("api");
+      builder.field("calls", get(Counter.API_CALLS));
+      builder.field("retries", get(Counter.API_RETRIES));
+      builder.field("hedged", get(Counter.API_HEDGED));
+      histogramToXContent(builder, this.histograms[Timer.API.ordinal()]);
+      builder.startObject("errors");
+      builder.field("rate_limited", get(Counter.RATE_LIMITED));
+      builder.field("circuit_breaker_open", get(Counter.CIRCUIT_BREAKER_OPEN));
+      builder.field("transient", get(Counter.TRANSIENT_ERRORS));
+      builder.field("other", get(Counter.OTHER_ERRORS));
+      builder.endObject();
+      builder.endObject();
+
+      builder.startObject("rate_limiter");
+      builder.field("waits", get(Counter.RATE_LIMIT_WAITS));
+      builder.field("wait_time_in_millis", TimeUnit.NANOSECONDS.toMillis(get(Counter.RATE_LIMIT_WAIT_NANOS)));
+      builder.endObject();
+      return builder;
+    }
+
+    private static void histogramToXContent(XContentBuilder builder, long[] histogram) throws IOException {
+      long count = 0;
+      for (int i = 0; i < Histogram.BUCKETS; i++) {
+        count += histogram[i];
+      }
+      builder.field("time_in_millis", TimeUnit.MICROSECONDS.toMillis(histogram[Histogram.BUCKETS]));
+      builder.startObject("latency");
+      builder.field("p50_in_micros", percentile(histogram, count, 50));
+      builder.field("p95_in_micros", percentile(histogram, count, 95));
+      builder.field("p99_in_micros", percentile(histogram, count, 99));
+      builder.startObject("histogram_in_micros");
+      for (int i = 0; i < Histogram.BUCKETS; i++) {
+        if (histogram[i] > 0) {
+          builder.field(Long.toString(1L << i), histogram[i]);
+        }
+      }
+      builder.endObject();
+      builder.endObject();
+    }
+
+    /**
+     * @return The upper bound of the bucket containing the specified percentile, or 0 if there are no values.
+     */
+    static long percentile(long[] histogram, long count, int percentile) {
+      final long rank = (count * percentile + 99) / 100;
+      long seen = 0;
+      for (int i = 0; i < Histogram.BUCKETS && count > 0; i++) {
+        seen += histogram[i];
+        if (seen >= rank) {
+          return 1L << i;
+        }
+      }
+      return 0;
+    }
+
+  }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Collects the {@link GeocodingStats} of the selected nodes.
+ */
+public class GeocodingStatsAction
+    extends Action<GeocodingStatsAction.Request, GeocodingStatsAction.Response, GeocodingStatsAction.RequestBuilder> {
+
+  public static final GeocodingStatsAction INSTANCE = new GeocodingStatsAction();
+  public static final String NAME = "cluster:monitor/geocoding/stats";
+
+  private GeocodingStatsAction() {
+    super(NAME);
+  }
+
+  @Override
+  public Response newResponse() {
+    return new Response();
+  }
+
+  @Override
+  public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+    return new RequestBuilder(client);
+  }
+
+  public static class Request extends BaseNodesRequest<Request> {
+
+    public Request(String... nodesIds) {
+      super(nodesIds);
+    }
+
+  }
+
+  public static class RequestBuilder extends NodesOperationRequestBuilder<Request, Response, RequestBuilder> {
+
+    RequestBuilder(ElasticsearchClient client) {
+      super(client, INSTANCE, new Request());
+    }
+
+  }
+
+  public static class NodeRequest extends BaseNodeRequest {
+
+    public NodeRequest() {
+    }
+
+    NodeRequest(String nodeId) {
+      super(nodeId);
+    }
+
+  }
+
+  public static class NodeResponse extends BaseNodeResponse implements ToXContentFragment {
+
+    private GeocodingStats.Snapshot stats;
+
+    public NodeResponse() {
+    }
+
+    NodeResponse(DiscoveryNode node, GeocodingStats.Snapshot stats) {
+      super(node);
+      this.stats = stats;
+    }
+
+    GeocodingStats.Snapshot getStats() {
+      return this.stats;
+    }
+
+    static NodeResponse readNodeResponse(StreamInput in) throws IOException {
+      final NodeResponse response = new NodeResponse();
+      response.readFrom(in);
+      return response;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+      super.readFrom(in);
+      this.stats = new GeocodingStats.Snapshot(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+      super.writeTo(out);
+      this.stats.writeTo(out);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+      builder.field("name", getNode().getName());
+      return this.stats.toXContent(builder, params);
+    }
+
+  }
+
+  public static class Response extends BaseNodesResponse<NodeResponse> implements ToXContentFragment {
+
+    Response() {
+    }
+
+    Response(ClusterName clusterName, List<NodeResponse> nodes, List<FailedNodeException> failures) {
+      super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeResponse> readNodesFrom(StreamInput in) throws IOException {
+      return in.readList(NodeResponse::readNodeResponse);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<NodeResponse> nodes) throws IOException {
+      out.writeStreamableList(nodes);
+    }
+
+    /**
+     * @return The stats of all the nodes added together.
+     */
+    GeocodingStats.Snapshot getTotal() {
+      GeocodingStats.Snapshot total = GeocodingStats.Snapshot.empty();
+      for (NodeResponse node : getNodes()) {
+        total = total.add(node.getStats());
+      }
+      return total;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+      builder.startObject("total");
+      getTotal().toXContent(builder, params);
+      builder.endObject();
+      builder.startObject("nodes");
+      for (NodeResponse node : getNodes()) {
+        builder.startObject(node.getNode().getId());
+        node.toXContent(builder, params);
+        builder.endObject();
+      }
+      builder.endObject();
+      return builder;
+    }
+
+  }
+
+}
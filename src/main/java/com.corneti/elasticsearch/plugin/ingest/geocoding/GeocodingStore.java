@@ -0,0 +1,432 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Persistent geocoding results stored in the node data path.
+ *
+ * Results are kept in a memory-mapped, open-addressing hash table keyed by the {@link AddressFingerprint} of
+ * the address, so opening the store only maps the file and lookups do not load anything onto the heap.
+ * Entries are never removed in place: a background compaction periodically rewrites the table to a new file,
+ * dropping expired entries, evicting the oldest ones beyond the configured maximum and growing the table,
+ * then atomically replaces the old file.
+ */
+class GeocodingStore implements Closeable {
+
+  static final String FILE_NAME = "geocoding.store";
+
+  private static final int MAGIC = 0x47454f43;
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 32;
+  private static final int COUNT_OFFSET = 16;
+  private static final int SLOT_SIZE = 40;
+  private static final int MIN_CAPACITY = 1 << 12;
+  private static final int MAX_CAPACITY = 1 << 25;
+  private static final double MAX_LOAD = 0.7;
+
+  private final Logger logger;
+  private final Path file;
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final TimeValue compactionInterval;
+  private final ThreadPool threadPool;
+
+  // guards writes to the table and compactions; readers never take it
+  private final ReentrantLock mutex = new ReentrantLock();
+  private final StampedLock slotLock = new StampedLock();
+  private final AtomicBoolean compactionPending = new AtomicBoolean();
+
+  private volatile Table table;
+  private volatile Scheduler.Cancellable compactionTask;
+
+  /**
+   * Opens the store in the specified directory, creating it if needed.
+   *
+   * @param threadPool - The thread pool used for compactions; if null, the store is only compacted on demand.
+   */
+  GeocodingStore(Settings settings, Path directory, ThreadPool threadPool) throws IOException {
+    this.logger = Loggers.getLogger(getClass(), settings);
+    this.file = directory.resolve(FILE_NAME);
+    this.maxEntries = IngestGeocodingPlugin.STORE_MAX_ENTRIES.get(settings);
+    this.ttlMillis = IngestGeocodingPlugin.STORE_TTL.get(settings).millis();
+    this.compactionInterval = IngestGeocodingPlugin.STORE_COMPACTION_INTERVAL.get(settings);
+    this.threadPool = threadPool;
+    Files.createDirectories(directory);
+    this.table = open();
+  }
+
+  /**
+   * Schedules the periodic compaction of the store.
+   */
+  void start() {
+    if (this.threadPool != null && this.compactionInterval.millis() > 0) {
+      this.compactionTask = this.threadPool.scheduleWithFixedDelay(this::compactSafely, this.compactionInterval,
+          ThreadPool.Names.GENERIC);
+    }
+  }
+
+  /**
+   * @param fingerprint - The fingerprint of an address.
+   * @return The stored {@link GeocodingOutput} for the specified address, or null if there is none or it has expired.
+   */
+  GeocodingOutput get(AddressFingerprint fingerprint) {
+    return get(fingerprint, false);
+  }
+
+  /**
+   * @param includeExpired - Whether to return entries past their time to live, until they are compacted away.
+   */
+  GeocodingOutput get(AddressFingerprint fingerprint, boolean includeExpired) {
+    final Table table = this.table;
+
+    long stamp = this.slotLock.tryOptimisticRead();
+    int slot = table.find(fingerprint.h1, fingerprint.h2);
+    long written = slot < 0 ? 0 : table.written(slot);
+    double latitude = slot < 0 ? 0 : table.latitude(slot);
+    double longitude = slot < 0 ? 0 : table.longitude(slot);
+    if (!this.slotLock.validate(stamp)) {
+      stamp = this.slotLock.readLock();
+      try {
+        slot = table.find(fingerprint.h1, fingerprint.h2);
+        written = slot < 0 ? 0 : table.written(slot);
+        latitude = slot < 0 ? 0 : table.latitude(slot);
+        longitude = slot < 0 ? 0 : table.longitude(slot);
+      } finally {
+        this.slotLock.unlockRead(stamp);
+      }
+    }
+
+    if (slot < 0 || (!includeExpired && isExpired(written, System.currentTimeMillis()))) {
+      return null;
+    }
+    return new GeocodingOutput(latitude, longitude);
+  }
+
+  /**
+   * Writes a successful match through to the store; errors and empty results are ignored.
+   */
+  void put(AddressFingerprint fingerprint, GeocodingOutput output) {
+    if (output == null || !output.hasLocation()) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+
+    this.mutex.lock();
+    try {
+      final Table table = this.table;
+      int slot = table.find(fingerprint.h1, fingerprint.h2);
+      if (slot < 0) {
+        if (table.count() >= table.capacity * MAX_LOAD) {
+          requestCompaction();
+          return;
+        }
+        slot = -slot - 1;
+      }
+      final long stamp = this.slotLock.writeLock();
+      try {
+        table.write(slot, fingerprint.h1, fingerprint.h2, output.getLatitude(), output.getLongitude(), now);
+      } finally {
+        this.slotLock.unlockWrite(stamp);
+      }
+    } finally {
+      this.mutex.unlock();
+    }
+  }
+
+  int count() {
+    return (int) this.table.count();
+  }
+
+  /**
+   * Rewrites the store, dropping expired entries and resizing the table to fit the live ones.
+   */
+  void compact() throws IOException {
+    this.mutex.lock();
+    try {
+      final Table current = this.table;
+      final long now = System.currentTimeMillis();
+
+      int live = 0;
+      int expired = 0;
+      for (int slot = 0; slot < current.capacity; slot++) {
+        if (current.isEmpty(slot)) {
+          continue;
+        }
+        if (isExpired(current.written(slot), now)) {
+          expired++;
+        } else {
+          live++;
+        }
+      }
+
+      // when there are too many live entries, the oldest ones are evicted; entries written at the cutoff time
+      // are kept until the maximum is reached
+      long cutoff = Long.MIN_VALUE;
+      int keptAtCutoff = Integer.MAX_VALUE;
+      if (live > this.maxEntries) {
+        final long[] written = writeTimes(current, now, live);
+        cutoff = written[live - this.maxEntries];
+        keptAtCutoff = this.maxEntries;
+        for (int i = live - 1; i >= 0 && written[i] > cutoff; i--) {
+          keptAtCutoff--;
+        }
+      }
+
+      final int capacity = capacityFor(Math.min(live, this.maxEntries) * 2);
+      if (expired == 0 && cutoff == Long.MIN_VALUE && capacity <= current.capacity) {
+        current.buffer.force();
+        return;
+      }
+
+      final Path tmp = this.file.resolveSibling(FILE_NAME + ".tmp");
+      final Table compacted = create(tmp, capacity);
+      for (int slot = 0; slot < current.capacity; slot++) {
+        if (current.isEmpty(slot)) {
+          continue;
+        }
+        final long written = current.written(slot);
+        if (isExpired(written, now) || written < cutoff) {
+          continue;
+        }
+        if (written == cutoff && keptAtCutoff-- <= 0) {
+          continue;
+        }
+        final long h1 = current.h1(slot);
+        final long h2 = current.h2(slot);
+        final int target = compacted.find(h1, h2);
+        if (target < 0 && compacted.count() < compacted.capacity * MAX_LOAD) {
+          compacted.write(-target - 1, h1, h2, current.latitude(slot), current.longitude(slot), written);
+        }
+      }
+      compacted.buffer.force();
+      Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+      this.table = compacted;
+      this.logger.debug("compacted geocoding store from [{}] to [{}] entries, capacity [{}]", current.count(),
+          compacted.count(), compacted.capacity);
+    } finally {
+      this.compactionPending.set(false);
+      this.mutex.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    final Scheduler.Cancellable task = this.compactionTask;
+    if (task != null) {
+      task.cancel();
+    }
+    this.mutex.lock();
+    try {
+      this.table.buffer.force();
+    } finally {
+      this.mutex.unlock();
+    }
+  }
+
+  private void requestCompaction() {
+    if (this.threadPool != null && this.compactionPending.compareAndSet(false, true)) {
+      this.threadPool.generic().execute(this::compactSafely);
+    }
+  }
+
+  private void compactSafely() {
+    try {
+      compact();
+    } catch (Exception e) {
+      this.logger.warn("An error occurred while compacting the geocoding store.", e);
+    }
+  }
+
+  private boolean isExpired(long written, long now) {
+    return this.ttlMillis > 0 && now - written > this.ttlMillis;
+  }
+
+  /**
+   * @return The sorted write times of the live entries in the specified table.
+   */
+  private long[] writeTimes(Table table, long now, int live) {
+    final long[] written = new long[live];
+    int i = 0;
+    for (int slot = 0; slot < table.capacity; slot++) {
+      if (!table.isEmpty(slot) && !isExpired(table.written(slot), now)) {
+        written[i++] = table.written(slot);
+      }
+    }
+    Arrays.sort(written);
+    return written;
+  }
+
+  private Table open() throws IOException {
+    if (Files.exists(this.file)) {
+      try {
+        final Table table = map(this.file);
+        if (table != null) {
+          return table;
+        }
+        this.logger.warn("Discarding invalid geocoding store [{}].", this.file);
+      } catch (IOException e) {
+        this.logger.warn(new ParameterizedMessage("Discarding unreadable geocoding store [{}].", this.file), e);
+      }
+    }
+    final Path tmp = this.file.resolveSibling(FILE_NAME + ".tmp");
+    final Table table = create(tmp, Math.min(MIN_CAPACITY, capacityFor(this.maxEntries)));
+    Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return table;
+  }
+
+  private static Table map(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final long size = channel.size();
+      if (size < HEADER_SIZE) {
+        return null;
+      }
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      final int capacity = buffer.getInt(8);
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || Integer.bitCount(capacity) != 1
+          || capacity > MAX_CAPACITY || size != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+        return null;
+      }
+      return new Table(buffer, capacity);
+    }
+  }
+
+  private static Table create(Path path, int capacity) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+          HEADER_SIZE + (long) capacity * SLOT_SIZE);
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putInt(8, capacity);
+      buffer.putLong(COUNT_OFFSET, 0);
+      return new Table(buffer, capacity);
+    }
+  }
+
+  private static int capacityFor(long entries) {
+    final long slots = Math.max(MIN_CAPACITY, (long) Math.ceil(entries / MAX_LOAD));
+    if (slots >= MAX_CAPACITY) {
+      return MAX_CAPACITY;
+    }
+    return Integer.highestOneBit((int) slots - 1) << 1;
+  }
+
+  /**
+   * A fixed capacity hash table over a mapped file; each slot holds the two halves of the address hash,
+   * the coordinates and the time the entry was written.
+   */
+  private static final class Table {
+
+    final MappedByteBuffer buffer;
+    final int capacity;
+    final int mask;
+
+    Table(MappedByteBuffer buffer, int capacity) {
+      this.buffer = buffer;
+      this.capacity = capacity;
+      this.mask = capacity - 1;
+    }
+
+    /**
+     * @return The slot holding the specified hash, or (-insertionSlot - 1) if it is not in the table.
+     */
+    int find(long h1, long h2) {
+      int slot = (int) (h1 ^ (h1 >>> 32)) & this.mask;
+      for (int probes = 0; probes < this.capacity; probes++) {
+        final long slotH1 = h1(slot);
+        final long slotH2 = h2(slot);
+        if (slotH1 == 0 && slotH2 == 0) {
+          return -slot - 1;
+        }
+        if (slotH1 == h1 && slotH2 == h2) {
+          return slot;
+        }
+        slot = (slot + 1) & this.mask;
+      }
+      return -this.capacity - 1;
+    }
+
+    void write(int slot, long h1, long h2, double latitude, double longitude, long written) {
+      final int offset = offset(slot);
+      final boolean inserted = isEmpty(slot);
+      this.buffer.putDouble(offset + 16, latitude);
+      this.buffer.putDouble(offset + 24, longitude);
+      this.buffer.putLong(offset + 32, written);
+      this.buffer.putLong(offset + 8, h2);
+      this.buffer.putLong(offset, h1);
+      if (inserted) {
+        this.buffer.putLong(COUNT_OFFSET, count() + 1);
+      }
+    }
+
+    boolean isEmpty(int slot) {
+      return h1(slot) == 0 && h2(slot) == 0;
+    }
+
+    long count() {
+      return this.buffer.getLong(COUNT_OFFSET);
+    }
+
+    long h1(int slot) {
+      return this.buffer.getLong(offset(slot));
+    }
+
+    long h2(int slot) {
+      return this.buffer.getLong(offset(slot) + 8);
+    }
+
+    double latitude(int slot) {
+      return this.buffer.getDouble(offset(slot) + 16);
+    }
+
+    double longitude(int slot) {
+      return this.buffer.getDouble(offset(slot) + 24);
+    }
+
+    long written(int slot) {
+      return this.buffer.getLong(offset(slot) + 32);
+    }
+
+    private static int offset(int slot) {
+      return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+  }
+
+}
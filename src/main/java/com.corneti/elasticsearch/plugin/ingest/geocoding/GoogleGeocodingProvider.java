@@ -0,0 +1,268 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import com.google.maps.errors.ApiException;
+import com.google.maps.errors.InvalidRequestException;
+import com.google.maps.errors.NotFoundException;
+import com.google.maps.errors.OverQueryLimitException;
+import com.google.maps.errors.UnknownErrorException;
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.SpecialPermission;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link GeocodingProvider} calling Google's Geocoding API.
+ *
+ * All the requests of a node go through the same HTTP client, whose connection pool, timeouts, compression and base
+ * URL are configured by the {@code ingest.geocoding.http.*} settings. Requests are spread across the API keys of the
+ * {@link GeocodingKeyPool}.
+ *
+ * Responses are parsed as a stream: only the location of the first result is read, and the rest of the response is
+ * skipped without being materialized.
+ */
+class GoogleGeocodingProvider implements GeocodingProvider {
+
+  static final String NAME = "google";
+  static final String DEFAULT_BASE_URL = "https://maps.googleapis.com";
+
+  /**
+   * An HTTP response with an error status.
+   */
+  static final class HttpStatusException extends IOException {
+
+    private final int status;
+
+    HttpStatusException(int status) {
+      super("The Geocoding API responded with HTTP status [" + status + "].");
+      this.status = status;
+    }
+
+    /**
+     * @return true for server errors and rate limit responses, which are transient.
+     */
+    boolean isTransient() {
+      return this.status >= 500 || this.status == 429;
+    }
+
+  }
+
+  private final Logger logger;
+  private final GeocodingKeyPool keyPool;
+  private final HttpUrl url;
+  private final ConnectionPool connectionPool;
+  private final OkHttpClient client;
+
+  GoogleGeocodingProvider(Settings settings) {
+    this.logger = Loggers.getLogger(getClass(), settings);
+    this.keyPool = new GeocodingKeyPool(settings);
+    this.url = HttpUrl.parse(IngestGeocodingPlugin.HTTP_BASE_URL.get(settings)).newBuilder()
+        .addPathSegments("maps/api/geocode/json")
+        .build();
+    final TimeValue keepAlive = IngestGeocodingPlugin.HTTP_KEEP_ALIVE.get(settings);
+    this.connectionPool = new ConnectionPool(IngestGeocodingPlugin.HTTP_MAX_IDLE_CONNECTIONS.get(settings),
+        keepAlive.millis(), TimeUnit.MILLISECONDS);
+
+    final OkHttpClient.Builder client = new OkHttpClient.Builder()
+        .connectionPool(this.connectionPool)
+        .connectTimeout(IngestGeocodingPlugin.HTTP_CONNECT_TIMEOUT.get(settings).millis(), TimeUnit.MILLISECONDS)
+        .readTimeout(IngestGeocodingPlugin.HTTP_READ_TIMEOUT.get(settings).millis(), TimeUnit.MILLISECONDS);
+    if (!IngestGeocodingPlugin.HTTP_COMPRESSION.get(settings)) {
+      // OkHttp asks for gzip responses unless another encoding is requested
+      client.addInterceptor(chain ->
+          chain.proceed(chain.request().newBuilder().header("Accept-Encoding", "identity").build()));
+    }
+    // retries are handled by the RetryingGeocodingProvider, requests are throttled by the GeocodingRateLimiter
+    SpecialPermission.check();
+    this.client = AccessController.doPrivileged((PrivilegedAction<OkHttpClient>) client::build);
+  }
+
+  GeocodingKeyPool getKeyPool() {
+    return this.keyPool;
+  }
+
+  @Override
+  public GeocodingOutput geocode(String address) throws Exception {
+    final GeocodingKeyPool.Key key = this.keyPool.acquire();
+    Exception failure = null;
+    try {
+      return geocode(key.getValue(), address);
+    } catch (Exception e) {
+      failure = e;
+      throw e;
+    } finally {
+      this.keyPool.release(key, failure);
+    }
+  }
+
+  private GeocodingOutput geocode(String apiKey, String address) throws Exception {
+    if (!apiKey.startsWith("AIza")) {
+      throw new IllegalArgumentException("Invalid API key.");
+    }
+    final Request request = new Request.Builder()
+        .url(this.url.newBuilder().addQueryParameter("key", apiKey).addQueryParameter("address", address).build())
+        .build();
+
+    SpecialPermission.check();
+    try {
+      return AccessController.doPrivileged((PrivilegedExceptionAction<GeocodingOutput>) () -> {
+        try (Response response = this.client.newCall(request).execute()) {
+          final ResponseBody body = response.body();
+          if (!response.isSuccessful()) {
+            throw new HttpStatusException(response.code());
+          }
+          if (body == null) {
+            throw new IOException("The Geocoding API responded without a body.");
+          }
+          return parse(body.byteStream());
+        }
+      });
+    } catch (PrivilegedActionException e) {
+      throw e.getException();
+    }
+  }
+
+  /**
+   * Reads the location of the first result of a Geocoding API response, then stops reading.
+   *
+   * @return The location of the first result, or null if there are no results.
+   * @throws ApiException If the response has an error status.
+   */
+  static GeocodingOutput parse(InputStream stream) throws IOException, ApiException {
+    try (XContentParser parser = JsonXContent.jsonXContent.createParser(NamedXContentRegistry.EMPTY,
+        LoggingDeprecationHandler.INSTANCE, stream)) {
+      if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+        throw new IOException("Malformed Geocoding API response.");
+      }
+      String status = null;
+      String errorMessage = null;
+      while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+        final String field = parser.currentName();
+        final XContentParser.Token token = parser.nextToken();
+        if (field.equals("results") && token == XContentParser.Token.START_ARRAY) {
+          if (parser.nextToken() == XContentParser.Token.START_OBJECT) {
+            // a response with results is successful, its status does not need to be read
+            return parseResult(parser);
+          }
+        } else if (field.equals("status") && token == XContentParser.Token.VALUE_STRING) {
+          status = parser.text();
+        } else if (field.equals("error_message") && token == XContentParser.Token.VALUE_STRING) {
+          errorMessage = parser.text();
+        } else {
+          parser.skipChildren();
+        }
+      }
+      if (status == null || status.equals("OK") || status.equals("ZERO_RESULTS")) {
+        return null;
+      }
+      throw ApiException.from(status, errorMessage);
+    }
+  }
+
+  /**
+   * Reads {@code geometry.location} from the result object the parser is positioned on.
+   */
+  private static GeocodingOutput parseResult(XContentParser parser) throws IOException {
+    while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+      final String field = parser.currentName();
+      if (parser.nextToken() == XContentParser.Token.START_OBJECT && field.equals("geometry")) {
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+          final String geometryField = parser.currentName();
+          if (parser.nextToken() == XContentParser.Token.START_OBJECT && geometryField.equals("location")) {
+            return parseLocation(parser);
+          }
+          parser.skipChildren();
+        }
+        return null;
+      }
+      parser.skipChildren();
+    }
+    return null;
+  }
+
+  private static GeocodingOutput parseLocation(XContentParser parser) throws IOException {
+    double latitude = Double.NaN;
+    double longitude = Double.NaN;
+    while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+      final String field = parser.currentName();
+      parser.nextToken();
+      if (field.equals("lat")) {
+        latitude = parser.doubleValue();
+      } else if (field.equals("lng")) {
+        longitude = parser.doubleValue();
+      } else {
+        parser.skipChildren();
+      }
+    }
+    if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+      return null;
+    }
+    return new GeocodingOutput(latitude, longitude);
+  }
+
+  /**
+   * Network errors, server errors and rate limit errors are transient; errors caused by a key may be retried with
+   * another key, if there is one. Any other error, including client error HTTP statuses, is caused by the request.
+   */
+  @Override
+  public boolean isRetryable(Exception e) {
+    if (e instanceof HttpStatusException) {
+      return ((HttpStatusException) e).isTransient();
+    }
+    return e instanceof IOException || e instanceof OverQueryLimitException || e instanceof UnknownErrorException
+        || (GeocodingKeyPool.isKeyError(e) && this.keyPool.size() > 1);
+  }
+
+  /**
+   * Invalid requests and addresses that cannot be geocoded fail the same way every time; errors such as a denied or
+   * exhausted API key are not specific to the address.
+   */
+  @Override
+  public boolean isDeterministic(Exception e) {
+    return e instanceof InvalidRequestException || e instanceof NotFoundException;
+  }
+
+  @Override
+  public void close() {
+    try {
+      this.connectionPool.evictAll();
+    } catch (Throwable t) {
+      this.logger.info("An error occurred while closing the Geocoding API connections.", t);
+    }
+  }
+
+}
@@ -17,60 +17,345 @@
 
 package com.corneti.elasticsearch.plugin.ingest.geocoding;
 
+import okhttp3.HttpUrl;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.collect.MapBuilder;
 import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.env.NodeEnvironment;
 import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.watcher.ResourceWatcherService;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
-public class IngestGeocodingPlugin extends Plugin implements IngestPlugin {
+public class IngestGeocodingPlugin extends Plugin implements ActionPlugin, IngestPlugin {
 
   private final Settings settings;
   private GeocodingService geocodingService;
+  private GeocodingKeyPool keyPool;
 
   public static final Setting<String> API_KEY =
       new Setting<>("ingest.geocoding.api_key", "", (value) -> value, Setting.Property.NodeScope,
           Setting.Property.Filtered);
 
+  public static final Setting.AffixSetting<String> API_KEYS =
+      Setting.affixKeySetting("ingest.geocoding.api_keys.", "key",
+          (key) -> Setting.simpleString(key, Setting.Property.NodeScope, Setting.Property.Filtered));
+
+  public static final Setting.AffixSetting<Double> API_KEYS_QPS =
+      Setting.affixKeySetting("ingest.geocoding.api_keys.", "qps",
+          (key) -> Setting.doubleSetting(key, 0.0, 0.0, Setting.Property.NodeScope), API_KEYS);
+
+  public static final Setting.AffixSetting<Long> API_KEYS_DAILY_LIMIT =
+      Setting.affixKeySetting("ingest.geocoding.api_keys.", "daily_limit",
+          (key) -> Setting.longSetting(key, 0, 0, Setting.Property.NodeScope), API_KEYS);
+
+  public static final Setting<TimeValue> API_KEYS_COOLDOWN =
+      Setting.timeSetting("ingest.geocoding.api_key_cooldown", TimeValue.timeValueMinutes(1), TimeValue.ZERO,
+          Setting.Property.NodeScope);
+
+  public static final Setting<String> PROVIDER =
+      new Setting<>("ingest.geocoding.provider", GoogleGeocodingProvider.NAME, (value) -> {
+        if (!value.equals(GoogleGeocodingProvider.NAME) && !value.equals(GazetteerGeocodingProvider.NAME)) {
+          throw new IllegalArgumentException("Unknown geocoding provider [" + value + "]");
+        }
+        return value;
+      }, Setting.Property.NodeScope);
+
+  public static final Setting<String> GAZETTEER_FILE =
+      new Setting<>("ingest.geocoding.gazetteer.file", "ingest-geocoding/gazetteer.csv", (value) -> value,
+          Setting.Property.NodeScope);
+
+  public static final Setting<String> PLACES_FILE =
+      new Setting<>("ingest.geocoding.places.file", "ingest-geocoding/places.csv", (value) -> value,
+          Setting.Property.NodeScope);
+
+  public static final Setting<String> HTTP_BASE_URL =
+      new Setting<>("ingest.geocoding.http.base_url", GoogleGeocodingProvider.DEFAULT_BASE_URL, (value) -> {
+        final HttpUrl url = HttpUrl.parse(value);
+        if (url == null) {
+          throw new IllegalArgumentException("Invalid geocoding base URL [" + value + "]");
+        }
+        return value;
+      }, Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> HTTP_CONNECT_TIMEOUT =
+      Setting.timeSetting("ingest.geocoding.http.connect_timeout", TimeValue.timeValueSeconds(10), TimeValue.ZERO,
+          Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> HTTP_READ_TIMEOUT =
+      Setting.timeSetting("ingest.geocoding.http.read_timeout", TimeValue.timeValueSeconds(10), TimeValue.ZERO,
+          Setting.Property.NodeScope);
+
+  public static final Setting<Integer> HTTP_MAX_IDLE_CONNECTIONS =
+      Setting.intSetting("ingest.geocoding.http.max_idle_connections", 32, 0, Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> HTTP_KEEP_ALIVE =
+      Setting.timeSetting("ingest.geocoding.http.keep_alive", TimeValue.timeValueMinutes(5),
+          TimeValue.timeValueMillis(1), Setting.Property.NodeScope);
+
+  public static final Setting<Boolean> HTTP_COMPRESSION =
+      Setting.boolSetting("ingest.geocoding.http.compression", true, Setting.Property.NodeScope);
+
+  public static final Setting<Double> RATE_LIMIT_CLUSTER_QPS =
+      Setting.doubleSetting("ingest.geocoding.rate_limit.cluster_qps", 50.0, 0.0, Setting.Property.NodeScope,
+          Setting.Property.Dynamic);
+
+  public static final Setting<Integer> RATE_LIMIT_BURST =
+      Setting.intSetting("ingest.geocoding.rate_limit.burst", 10, 1, Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> RATE_LIMIT_MAX_WAIT =
+      Setting.timeSetting("ingest.geocoding.rate_limit.max_wait", TimeValue.timeValueSeconds(1), TimeValue.ZERO,
+          Setting.Property.NodeScope);
+
+  public static final Setting<Integer> RETRY_MAX_RETRIES =
+      Setting.intSetting("ingest.geocoding.retry.max_retries", 2, 0, Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> RETRY_INITIAL_BACKOFF =
+      Setting.timeSetting("ingest.geocoding.retry.initial_backoff", TimeValue.timeValueMillis(100), TimeValue.ZERO,
+          Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> RETRY_MAX_BACKOFF =
+      Setting.timeSetting("ingest.geocoding.retry.max_backoff", TimeValue.timeValueSeconds(2), TimeValue.ZERO,
+          Setting.Property.NodeScope);
+
+  public static final Setting<Integer> HEDGE_PERCENTILE =
+      Setting.intSetting("ingest.geocoding.hedge.percentile", 0, 0, 99, Setting.Property.NodeScope);
+
+  public static final Setting<Integer> CIRCUIT_BREAKER_FAILURE_THRESHOLD =
+      Setting.intSetting("ingest.geocoding.circuit_breaker.failure_threshold", 20, 0, Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> CIRCUIT_BREAKER_OPEN_DURATION =
+      Setting.timeSetting("ingest.geocoding.circuit_breaker.open_duration", TimeValue.timeValueSeconds(30),
+          TimeValue.ZERO, Setting.Property.NodeScope);
+
+  public static final Setting<Integer> CACHE_MAX_ENTRIES =
+      Setting.intSetting("ingest.geocoding.cache.max_entries", 10000, 0, Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> CACHE_TTL =
+      Setting.timeSetting("ingest.geocoding.cache.ttl", TimeValue.timeValueHours(24), TimeValue.ZERO,
+          Setting.Property.NodeScope);
+
+  public static final Setting<String> CACHE_SNAPSHOT_FILE =
+      new Setting<>("ingest.geocoding.cache.snapshot.file", "ingest-geocoding/cache.snapshot", (value) -> value,
+          Setting.Property.NodeScope);
+
+  public static final Setting<Integer> NEGATIVE_CACHE_MAX_ENTRIES =
+      Setting.intSetting("ingest.geocoding.cache.negative.max_entries", 10000, 0, Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> NEGATIVE_CACHE_TTL =
+      Setting.timeSetting("ingest.geocoding.cache.negative.ttl", TimeValue.timeValueHours(1), TimeValue.ZERO,
+          Setting.Property.NodeScope);
+
+  public static final Setting<Integer> ERROR_CACHE_MAX_ENTRIES =
+      Setting.intSetting("ingest.geocoding.cache.errors.max_entries", 1000, 0, Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> ERROR_CACHE_TTL =
+      Setting.timeSetting("ingest.geocoding.cache.errors.ttl", TimeValue.timeValueMinutes(10), TimeValue.ZERO,
+          Setting.Property.NodeScope);
+
+  public static final Setting<Boolean> SHARED_CACHE_ENABLED =
+      Setting.boolSetting("ingest.geocoding.shared_cache.enabled", false, Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> SHARED_CACHE_TTL =
+      Setting.timeSetting("ingest.geocoding.shared_cache.ttl", TimeValue.timeValueHours(24 * 30), TimeValue.ZERO,
+          Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> SHARED_CACHE_TIMEOUT =
+      Setting.timeSetting("ingest.geocoding.shared_cache.timeout", TimeValue.timeValueSeconds(1),
+          TimeValue.timeValueMillis(1), Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> SHARED_CACHE_FLUSH_INTERVAL =
+      Setting.timeSetting("ingest.geocoding.shared_cache.flush_interval", TimeValue.timeValueSeconds(1),
+          TimeValue.timeValueMillis(1), Setting.Property.NodeScope);
+
+  public static final Setting<Integer> SHARED_CACHE_BULK_SIZE =
+      Setting.intSetting("ingest.geocoding.shared_cache.bulk_size", 500, 1, Setting.Property.NodeScope);
+
+  public static final Setting<Integer> SHARED_CACHE_QUEUE_SIZE =
+      Setting.intSetting("ingest.geocoding.shared_cache.queue_size", 10000, 1, Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> BACKFILL_FLUSH_INTERVAL =
+      Setting.timeSetting("ingest.geocoding.backfill.flush_interval", TimeValue.timeValueSeconds(1),
+          TimeValue.timeValueMillis(1), Setting.Property.NodeScope);
+
+  public static final Setting<Integer> BACKFILL_BULK_SIZE =
+      Setting.intSetting("ingest.geocoding.backfill.bulk_size", 500, 1, Setting.Property.NodeScope);
+
+  public static final Setting<Integer> BACKFILL_QUEUE_SIZE =
+      Setting.intSetting("ingest.geocoding.backfill.queue_size", 10000, 1, Setting.Property.NodeScope);
+
+  public static final Setting<Boolean> STORE_ENABLED =
+      Setting.boolSetting("ingest.geocoding.store.enabled", false, Setting.Property.NodeScope);
+
+  public static final Setting<Integer> STORE_MAX_ENTRIES =
+      Setting.intSetting("ingest.geocoding.store.max_entries", 1000000, 1, 20000000, Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> STORE_TTL =
+      Setting.timeSetting("ingest.geocoding.store.ttl", TimeValue.timeValueHours(24 * 30), TimeValue.ZERO,
+          Setting.Property.NodeScope);
+
+  public static final Setting<TimeValue> STORE_COMPACTION_INTERVAL =
+      Setting.timeSetting("ingest.geocoding.store.compaction_interval", TimeValue.timeValueHours(1), TimeValue.ZERO,
+          Setting.Property.NodeScope);
+
+  public static final Setting<Integer> BULK_MAX_CONCURRENCY =
+      Setting.intSetting("ingest.geocoding.bulk.max_concurrency", 16, 1, GeocodingBulkAction.Request.MAX_CONCURRENCY,
+          Setting.Property.NodeScope);
+
   public IngestGeocodingPlugin(Settings settings) {
     this.settings = settings;
   }
 
   @Override
   public List<Setting<?>> getSettings() {
-    return Arrays.asList(API_KEY);
+    return Arrays.asList(API_KEY, API_KEYS, API_KEYS_QPS, API_KEYS_DAILY_LIMIT, API_KEYS_COOLDOWN, PROVIDER,
+        GAZETTEER_FILE, PLACES_FILE, HTTP_BASE_URL, HTTP_CONNECT_TIMEOUT, HTTP_READ_TIMEOUT, HTTP_MAX_IDLE_CONNECTIONS,
+        HTTP_KEEP_ALIVE, HTTP_COMPRESSION, RATE_LIMIT_CLUSTER_QPS, RATE_LIMIT_BURST, RATE_LIMIT_MAX_WAIT,
+        RETRY_MAX_RETRIES, RETRY_INITIAL_BACKOFF, RETRY_MAX_BACKOFF, HEDGE_PERCENTILE,
+        CIRCUIT_BREAKER_FAILURE_THRESHOLD, CIRCUIT_BREAKER_OPEN_DURATION, CACHE_MAX_ENTRIES, CACHE_TTL,
+        CACHE_SNAPSHOT_FILE, NEGATIVE_CACHE_MAX_ENTRIES, NEGATIVE_CACHE_TTL, ERROR_CACHE_MAX_ENTRIES, ERROR_CACHE_TTL,
+        SHARED_CACHE_ENABLED, SHARED_CACHE_TTL, SHARED_CACHE_TIMEOUT, SHARED_CACHE_FLUSH_INTERVAL,
+        SHARED_CACHE_BULK_SIZE, SHARED_CACHE_QUEUE_SIZE, BACKFILL_FLUSH_INTERVAL, BACKFILL_BULK_SIZE,
+        BACKFILL_QUEUE_SIZE, STORE_ENABLED, STORE_MAX_ENTRIES, STORE_TTL, STORE_COMPACTION_INTERVAL,
+        BULK_MAX_CONCURRENCY);
+  }
+
+  @Override
+  public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+    final int size = 4 * EsExecutors.numberOfProcessors(settings);
+    return Collections.singletonList(
+        new FixedExecutorBuilder(settings, GeocodingService.THREAD_POOL_NAME, size,
+            GeocodingService.THREAD_POOL_QUEUE_SIZE, "ingest.geocoding.thread_pool"));
   }
 
   @Override
   public Map<String, Processor.Factory> getProcessors(Processor.Parameters parameters) {
-    this.geocodingService = new GeocodingService(parameters.env.settings());
+    final GeocodingProvider provider = createProvider(parameters.env);
+    if (provider instanceof GoogleGeocodingProvider) {
+      this.keyPool = ((GoogleGeocodingProvider) provider).getKeyPool();
+    }
+    this.geocodingService = new GeocodingService(parameters.env.settings(), provider);
     return MapBuilder.<String, Processor.Factory>newMapBuilder()
         .put(GeocodingProcessor.TYPE, new GeocodingProcessor.Factory(this.geocodingService))
+        .put(ReverseGeocodingProcessor.TYPE, new ReverseGeocodingProcessor.Factory(loadPlaces(parameters.env)))
         .immutableMap();
   }
 
+  private static GeocodingProvider createProvider(Environment environment) {
+    final Settings settings = environment.settings();
+    if (PROVIDER.get(settings).equals(GazetteerGeocodingProvider.NAME)) {
+      final Path file = environment.configFile().resolve(GAZETTEER_FILE.get(settings));
+      try {
+        return new GazetteerGeocodingProvider(file);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to load the gazetteer [" + file + "]", e);
+      }
+    }
+    return new GoogleGeocodingProvider(settings);
+  }
+
+  /**
+   * @return The index of the places file, or null if the file does not exist.
+   */
+  private static PlaceIndex loadPlaces(Environment environment) {
+    final Path file = environment.configFile().resolve(PLACES_FILE.get(environment.settings()));
+    if (!Files.exists(file)) {
+      return null;
+    }
+    try {
+      return new PlaceIndex(file);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to load the places file [" + file + "]", e);
+    }
+  }
+
+  @Override
+  public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+    return Arrays.asList(
+        new ActionHandler<>(GeocodingStatsAction.INSTANCE, TransportGeocodingStatsAction.class),
+        new ActionHandler<>(GeocodingCacheSnapshotAction.INSTANCE, TransportGeocodingCacheSnapshotAction.class),
+        new ActionHandler<>(GeocodingBulkAction.INSTANCE, TransportGeocodingBulkAction.class));
+  }
+
+  @Override
+  public List<RestHandler> getRestHandlers(Settings settings, RestController restController,
+                                           ClusterSettings clusterSettings, IndexScopedSettings indexScopedSettings,
+                                           SettingsFilter settingsFilter,
+                                           IndexNameExpressionResolver indexNameExpressionResolver,
+                                           Supplier<DiscoveryNodes> nodesInCluster) {
+    return Arrays.asList(new RestGeocodingStatsAction(settings, restController),
+        new RestGeocodingCacheSnapshotAction(settings, restController),
+        new RestGeocodingBulkAction(settings, restController));
+  }
+
   @Override
   public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
                                              ResourceWatcherService resourceWatcherService, ScriptService scriptService,
                                              NamedXContentRegistry xContentRegistry, Environment environment,
                                              NodeEnvironment nodeEnvironment,
                                              NamedWriteableRegistry namedWriteableRegistry) {
+    this.geocodingService.setCacheSnapshotFiles(
+        nodeEnvironment.nodeDataPaths()[0].resolve("geocoding").resolve(GeocodingCacheSnapshot.FILE_NAME),
+        environment.configFile().resolve(CACHE_SNAPSHOT_FILE.get(this.settings)));
+
+    if (STORE_ENABLED.get(this.settings)) {
+      final Path directory = nodeEnvironment.nodeDataPaths()[0].resolve("geocoding");
+      try {
+        this.geocodingService.setStore(new GeocodingStore(this.settings, directory, threadPool));
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to open the geocoding store in [" + directory + "]", e);
+      }
+    }
+
+    if (SHARED_CACHE_ENABLED.get(this.settings)) {
+      this.geocodingService.setIndexCache(new GeocodingIndexCache(this.settings, client, threadPool));
+    }
+
+    this.geocodingService.setBackfill(
+        new GeocodingBackfill(this.settings, client, threadPool, this.geocodingService.getStats()));
+    this.geocodingService.setExecutor(threadPool.executor(GeocodingService.THREAD_POOL_NAME));
+    this.geocodingService.setHedgeExecutor(threadPool.generic());
+
+    final GeocodingRateLimiter rateLimiter = this.geocodingService.getRateLimiter();
+    clusterService.addListener(rateLimiter);
+    clusterService.getClusterSettings().addSettingsUpdateConsumer(RATE_LIMIT_CLUSTER_QPS, rateLimiter::setClusterQps);
+    if (this.keyPool != null) {
+      clusterService.addListener(this.keyPool);
+    }
+
     final List<Object> components = new ArrayList<>();
     components.add(this.geocodingService);
     return components;
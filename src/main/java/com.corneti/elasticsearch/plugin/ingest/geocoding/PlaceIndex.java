@@ -0,0 +1,284 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An in-memory index of places used for reverse geocoding.
+ *
+ * Places are read from a file in the same format as the gazetteer: the coordinate columns locate each place and
+ * all the other columns are attributes returned for it. Places are converted to points on the unit sphere and kept
+ * in a packed, implicit k-d tree: three float arrays reordered so that the median of each range along the split
+ * axis sits in its middle, so that nearest neighbour searches need no node objects and their distances are
+ * chord lengths that grow with the great-circle distance.
+ */
+class PlaceIndex {
+
+  static final double EARTH_RADIUS_METERS = 6371008.7714;
+
+  private final String[] columns;
+  // attribute values by column, then by place; repeated values share the same instance
+  private final String[][] values;
+  private final float[] x;
+  private final float[] y;
+  private final float[] z;
+  private final int[] places;
+
+  PlaceIndex(Path file) throws IOException {
+    final List<String> columns = new ArrayList<>();
+    final List<Integer> attributeColumns = new ArrayList<>();
+    final Map<String, String> interned = new HashMap<>();
+    String[][] values;
+    float[] x = new float[1024];
+    float[] y = new float[1024];
+    float[] z = new float[1024];
+    int size = 0;
+
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      final String header = reader.readLine();
+      if (header == null) {
+        throw new IllegalArgumentException("Places file [" + file + "] is empty.");
+      }
+      final char separator = header.indexOf('\t') >= 0 ? '\t' : ',';
+      final List<String> headerColumns = GazetteerGeocodingProvider.parseLine(header, separator);
+      int latitudeColumn = -1;
+      int longitudeColumn = -1;
+      for (int i = 0; i < headerColumns.size(); i++) {
+        final String column = headerColumns.get(i).trim();
+        final String lowercase = column.toLowerCase(Locale.ROOT);
+        if (lowercase.equals("lat") || lowercase.equals("latitude")) {
+          latitudeColumn = i;
+        } else if (lowercase.equals("lon") || lowercase.equals("lng") || lowercase.equals("longitude")) {
+          longitudeColumn = i;
+        } else {
+          columns.add(column);
+          attributeColumns.add(i);
+        }
+      }
+      if (latitudeColumn < 0 || longitudeColumn < 0) {
+        throw new IllegalArgumentException("Places file [" + file + "] has no latitude or longitude column.");
+      }
+
+      values = new String[columns.size()][1024];
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final List<String> row = GazetteerGeocodingProvider.parseLine(line, separator);
+        if (row.size() <= Math.max(latitudeColumn, longitudeColumn)) {
+          continue;
+        }
+        final double latitude;
+        final double longitude;
+        try {
+          latitude = Double.parseDouble(row.get(latitudeColumn));
+          longitude = Double.parseDouble(row.get(longitudeColumn));
+        } catch (NumberFormatException e) {
+          continue;
+        }
+
+        x = ArrayUtil.grow(x, size + 1);
+        y = ArrayUtil.grow(y, size + 1);
+        z = ArrayUtil.grow(z, size + 1);
+        final double phi = Math.toRadians(latitude);
+        final double lambda = Math.toRadians(longitude);
+        x[size] = (float) (Math.cos(phi) * Math.cos(lambda));
+        y[size] = (float) (Math.cos(phi) * Math.sin(lambda));
+        z[size] = (float) Math.sin(phi);
+        for (int c = 0; c < values.length; c++) {
+          values[c] = ArrayUtil.grow(values[c], size + 1);
+          final int column = attributeColumns.get(c);
+          final String value = column < row.size() ? row.get(column) : "";
+          if (!value.isEmpty()) {
+            final String existing = interned.putIfAbsent(value, value);
+            values[c][size] = existing == null ? value : existing;
+          }
+        }
+        size++;
+      }
+    }
+
+    this.columns = columns.toArray(new String[0]);
+    this.values = new String[values.length][];
+    for (int c = 0; c < values.length; c++) {
+      this.values[c] = Arrays.copyOf(values[c], size);
+    }
+    this.x = Arrays.copyOf(x, size);
+    this.y = Arrays.copyOf(y, size);
+    this.z = Arrays.copyOf(z, size);
+    this.places = new int[size];
+    for (int i = 0; i < size; i++) {
+      this.places[i] = i;
+    }
+    build(0, size, 0);
+  }
+
+  int size() {
+    return this.places.length;
+  }
+
+  String[] columns() {
+    return this.columns;
+  }
+
+  /**
+   * @return The value of an attribute column for the place at the specified position, or null if it is empty.
+   */
+  String value(int position, int column) {
+    return this.values[column][this.places[position]];
+  }
+
+  /**
+   * Finds the place closest to the specified coordinates.
+   *
+   * @param maxDistance - The maximum distance of the place, in meters.
+   * @return The position of the closest place, or -1 if there is no place within the maximum distance.
+   */
+  int nearest(double latitude, double longitude, double maxDistance) {
+    if (this.places.length == 0) {
+      return -1;
+    }
+    final double phi = Math.toRadians(latitude);
+    final double lambda = Math.toRadians(longitude);
+    final float qx = (float) (Math.cos(phi) * Math.cos(lambda));
+    final float qy = (float) (Math.cos(phi) * Math.sin(lambda));
+    final float qz = (float) Math.sin(phi);
+
+    double chord = 2;
+    if (maxDistance < Math.PI * EARTH_RADIUS_METERS) {
+      chord = 2 * Math.sin(maxDistance / (2 * EARTH_RADIUS_METERS));
+    }
+    final long best = search(0, this.places.length, 0, qx, qy, qz, pack(-1, (float) (chord * chord)));
+    return (int) (best >>> 32);
+  }
+
+  /**
+   * Searches the nearest place in a range of the tree.
+   *
+   * The position of the best place found so far and its squared distance are packed in a long, so that the
+   * search does not allocate.
+   */
+  private long search(int from, int to, int axis, float qx, float qy, float qz, long best) {
+    if (from >= to) {
+      return best;
+    }
+    final int mid = (from + to) >>> 1;
+    final float dx = qx - this.x[mid];
+    final float dy = qy - this.y[mid];
+    final float dz = qz - this.z[mid];
+    final float distance = dx * dx + dy * dy + dz * dz;
+    if (distance <= distance(best)) {
+      best = pack(mid, distance);
+    }
+
+    final float delta = axis == 0 ? dx : axis == 1 ? dy : dz;
+    final int next = axis == 2 ? 0 : axis + 1;
+    if (delta < 0) {
+      best = search(from, mid, next, qx, qy, qz, best);
+      if (delta * delta <= distance(best)) {
+        best = search(mid + 1, to, next, qx, qy, qz, best);
+      }
+    } else {
+      best = search(mid + 1, to, next, qx, qy, qz, best);
+      if (delta * delta <= distance(best)) {
+        best = search(from, mid, next, qx, qy, qz, best);
+      }
+    }
+    return best;
+  }
+
+  private static long pack(int position, float distance) {
+    return ((long) position << 32) | (Float.floatToRawIntBits(distance) & 0xFFFFFFFFL);
+  }
+
+  private static float distance(long best) {
+    return Float.intBitsToFloat((int) best);
+  }
+
+  /**
+   * Reorders a range of points so that its median along the split axis sits in the middle, then recurses on
+   * both halves with the next axis.
+   */
+  private void build(int from, int to, int axis) {
+    if (to - from < 2) {
+      return;
+    }
+    final int mid = (from + to) >>> 1;
+    select(from, to - 1, mid, axis);
+    final int next = axis == 2 ? 0 : axis + 1;
+    build(from, mid, next);
+    build(mid + 1, to, next);
+  }
+
+  /**
+   * Quickselect: partially sorts the points between left and right (inclusive) along an axis, so that the k-th one
+   * is in its sorted position.
+   */
+  private void select(int left, int right, int k, int axis) {
+    final float[] values = axis == 0 ? this.x : axis == 1 ? this.y : this.z;
+    while (right > left) {
+      final float pivot = values[(left + right) >>> 1];
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (values[i] < pivot) {
+          i++;
+        }
+        while (values[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(i++, j--);
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void swap(int i, int j) {
+    final float x = this.x[i];
+    this.x[i] = this.x[j];
+    this.x[j] = x;
+    final float y = this.y[i];
+    this.y[i] = this.y[j];
+    this.y[j] = y;
+    final float z = this.z[i];
+    this.z[i] = this.z[j];
+    this.z[j] = z;
+    final int place = this.places[i];
+    this.places[i] = this.places[j];
+    this.places[j] = place;
+  }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestToXContentListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exposes the {@link GeocodingBulkAction} as {@code POST _geocoding/_bulk}.
+ *
+ * The body is either an object with an {@code addresses} array, or newline delimited JSON where each line is an
+ * address or an object with an {@code address} field.
+ */
+public class RestGeocodingBulkAction extends BaseRestHandler {
+
+  RestGeocodingBulkAction(Settings settings, RestController controller) {
+    super(settings);
+    controller.registerHandler(RestRequest.Method.POST, "/_geocoding/_bulk", this);
+  }
+
+  @Override
+  public String getName() {
+    return "geocoding_bulk_action";
+  }
+
+  @Override
+  public boolean supportsContentStream() {
+    return true;
+  }
+
+  @Override
+  protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+    final List<String> addresses;
+    try (XContentParser parser = request.contentParser()) {
+      addresses = parseAddresses(parser);
+    }
+    final GeocodingBulkAction.Request bulkRequest = new GeocodingBulkAction.Request(addresses)
+        .setConcurrency(request.paramAsInt("concurrency", GeocodingBulkAction.Request.DEFAULT_CONCURRENCY));
+    return channel -> client.execute(GeocodingBulkAction.INSTANCE, bulkRequest, new RestToXContentListener<>(channel));
+  }
+
+  /**
+   * Reads the addresses of all the values of the body, in order.
+   */
+  static List<String> parseAddresses(XContentParser parser) throws IOException {
+    final List<String> addresses = new ArrayList<>();
+    XContentParser.Token token;
+    while ((token = parser.nextToken()) != null) {
+      if (token == XContentParser.Token.VALUE_STRING) {
+        addresses.add(parser.text());
+      } else if (token == XContentParser.Token.START_OBJECT) {
+        parseObject(parser, addresses);
+      } else {
+        throw new ParsingException(parser.getTokenLocation(), "Expected an address or an object, found [" + token
+            + "]");
+      }
+    }
+    return addresses;
+  }
+
+  private static void parseObject(XContentParser parser, List<String> addresses) throws IOException {
+    XContentParser.Token token;
+    while ((token = parser.nextToken()) == XContentParser.Token.FIELD_NAME) {
+      final String field = parser.currentName();
+      token = parser.nextToken();
+      if (field.equals("address") && token == XContentParser.Token.VALUE_STRING) {
+        addresses.add(parser.text());
+      } else if (field.equals("addresses") && token == XContentParser.Token.START_ARRAY) {
+        while ((token = parser.nextToken()) == XContentParser.Token.VALUE_STRING) {
+          addresses.add(parser.text());
+        }
+        if (token != XContentParser.Token.END_ARRAY) {
+          throw new ParsingException(parser.getTokenLocation(), "Expected an address, found [" + token + "]");
+        }
+      } else {
+        throw new ParsingException(parser.getTokenLocation(), "Unexpected field [" + field + "]");
+      }
+    }
+    if (token != XContentParser.Token.END_OBJECT) {
+      throw new ParsingException(parser.getTokenLocation(), "Expected a field name, found [" + token + "]");
+    }
+  }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+
+/**
+ * Exposes the {@link GeocodingCacheSnapshotAction} as {@code POST _nodes/geocoding/cache/_export} and
+ * {@code POST _nodes/geocoding/cache/_import}.
+ */
+public class RestGeocodingCacheSnapshotAction extends BaseRestHandler {
+
+  RestGeocodingCacheSnapshotAction(Settings settings, RestController controller) {
+    super(settings);
+    controller.registerHandler(RestRequest.Method.POST, "/_nodes/geocoding/cache/{operation}", this);
+    controller.registerHandler(RestRequest.Method.POST, "/_nodes/{nodeId}/geocoding/cache/{operation}", this);
+  }
+
+  @Override
+  public String getName() {
+    return "geocoding_cache_snapshot_action";
+  }
+
+  @Override
+  protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+    final String operation = request.param("operation");
+    final GeocodingCacheSnapshotAction.Operation snapshotOperation;
+    if (operation.equals("_export")) {
+      snapshotOperation = GeocodingCacheSnapshotAction.Operation.EXPORT;
+    } else if (operation.equals("_import")) {
+      snapshotOperation = GeocodingCacheSnapshotAction.Operation.IMPORT;
+    } else {
+      throw new IllegalArgumentException("Unknown geocoding cache operation [" + operation + "]");
+    }
+    final GeocodingCacheSnapshotAction.Request snapshotRequest = new GeocodingCacheSnapshotAction.Request(
+        snapshotOperation, Strings.splitStringByCommaToArray(request.param("nodeId")));
+    snapshotRequest.timeout(request.param("timeout"));
+    return channel -> client.execute(GeocodingCacheSnapshotAction.INSTANCE, snapshotRequest,
+        new RestActions.NodesResponseRestListener<>(channel));
+  }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+
+/**
+ * Exposes the {@link GeocodingStatsAction} as {@code GET _nodes/geocoding/stats}.
+ */
+public class RestGeocodingStatsAction extends BaseRestHandler {
+
+  RestGeocodingStatsAction(Settings settings, RestController controller) {
+    super(settings);
+    controller.registerHandler(RestRequest.Method.GET, "/_nodes/geocoding/stats", this);
+    controller.registerHandler(RestRequest.Method.GET, "/_nodes/{nodeId}/geocoding/stats", this);
+  }
+
+  @Override
+  public String getName() {
+    return "geocoding_stats_action";
+  }
+
+  @Override
+  protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+    final GeocodingStatsAction.Request statsRequest =
+        new GeocodingStatsAction.Request(Strings.splitStringByCommaToArray(request.param("nodeId")));
+    statsRequest.timeout(request.param("timeout"));
+    return channel -> client.execute(GeocodingStatsAction.INSTANCE, statsRequest,
+        new RestActions.NodesResponseRestListener<>(channel));
+  }
+
+}
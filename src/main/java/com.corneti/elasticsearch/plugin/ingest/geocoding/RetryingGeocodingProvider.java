@@ -0,0 +1,257 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.Randomness;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Wraps a {@link GeocodingProvider} to make it resilient to transient failures.
+ *
+ * Every request is subject to the rate limit. Requests failing with an error the provider deems retryable are
+ * retried after an exponential backoff with full jitter, while requests slower than the configured latency
+ * percentile can be hedged by a second request, the first response winning. A {@link GeocodingCircuitBreaker}
+ * fails lookups immediately while the provider is failing.
+ */
+class RetryingGeocodingProvider implements GeocodingProvider {
+
+  // number of recent latencies the hedging delay is computed from, and how often it is recomputed
+  private static final int LATENCY_SAMPLES = 256;
+  private static final int LATENCY_REFRESH = 64;
+
+  private final GeocodingProvider delegate;
+  private final GeocodingRateLimiter rateLimiter;
+  private final GeocodingCircuitBreaker circuitBreaker;
+  private final GeocodingStats stats;
+  private final int maxRetries;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final int hedgePercentile;
+
+  private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_SAMPLES);
+  private final AtomicLong recorded = new AtomicLong();
+  private volatile long hedgeDelayNanos = -1;
+  private volatile ExecutorService hedgeExecutor;
+
+  RetryingGeocodingProvider(Settings settings, GeocodingProvider delegate, GeocodingRateLimiter rateLimiter) {
+    this(settings, delegate, rateLimiter, new GeocodingStats());
+  }
+
+  RetryingGeocodingProvider(Settings settings, GeocodingProvider delegate, GeocodingRateLimiter rateLimiter,
+                            GeocodingStats stats) {
+    this.delegate = delegate;
+    this.stats = stats;
+    this.rateLimiter = rateLimiter;
+    this.circuitBreaker = new GeocodingCircuitBreaker(settings);
+    this.maxRetries = IngestGeocodingPlugin.RETRY_MAX_RETRIES.get(settings);
+    this.initialBackoffMillis = IngestGeocodingPlugin.RETRY_INITIAL_BACKOFF.get(settings).millis();
+    this.maxBackoffMillis = IngestGeocodingPlugin.RETRY_MAX_BACKOFF.get(settings).millis();
+    this.hedgePercentile = IngestGeocodingPlugin.HEDGE_PERCENTILE.get(settings);
+  }
+
+  /**
+   * Sets the executor running requests when hedging is enabled; if not set, requests are never hedged.
+   */
+  void setHedgeExecutor(ExecutorService hedgeExecutor) {
+    this.hedgeExecutor = hedgeExecutor;
+  }
+
+  GeocodingCircuitBreaker getCircuitBreaker() {
+    return this.circuitBreaker;
+  }
+
+  @Override
+  public GeocodingOutput geocode(String address) throws Exception {
+    if (!this.circuitBreaker.allowRequest(System.nanoTime())) {
+      this.stats.increment(GeocodingStats.Counter.CIRCUIT_BREAKER_OPEN);
+      throw new EsRejectedExecutionException("Geocoding circuit breaker is open.");
+    }
+    for (int attempt = 0; ; attempt++) {
+      if (!this.rateLimiter.acquire()) {
+        this.stats.increment(GeocodingStats.Counter.RATE_LIMITED);
+        throw new EsRejectedExecutionException("Geocoding rate limit exceeded.");
+      }
+      try {
+        final GeocodingOutput output = attempt(address);
+        this.circuitBreaker.onSuccess();
+        return output;
+      } catch (Exception e) {
+        if (!this.delegate.isRetryable(e)) {
+          // the provider answered, the request itself is at fault
+          this.circuitBreaker.onSuccess();
+          this.stats.increment(GeocodingStats.Counter.OTHER_ERRORS);
+          throw e;
+        }
+        if (attempt >= this.maxRetries) {
+          this.circuitBreaker.onFailure(System.nanoTime());
+          this.stats.increment(GeocodingStats.Counter.TRANSIENT_ERRORS);
+          throw e;
+        }
+        this.stats.increment(GeocodingStats.Counter.API_RETRIES);
+        try {
+          TimeUnit.MILLISECONDS.sleep(backoffMillis(attempt));
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  @Override
+  public boolean isRetryable(Exception e) {
+    return this.delegate.isRetryable(e);
+  }
+
+  @Override
+  public boolean isDeterministic(Exception e) {
+    return this.delegate.isDeterministic(e);
+  }
+
+  /**
+   * @return A random delay between zero and the exponential backoff of the specified attempt.
+   */
+  private long backoffMillis(int attempt) {
+    final long backoff = Math.min(this.maxBackoffMillis, this.initialBackoffMillis << Math.min(attempt, 30));
+    return backoff <= 0 ? 0 : Randomness.get().nextInt((int) Math.min(Integer.MAX_VALUE, backoff + 1));
+  }
+
+  /**
+   * Sends a request, hedging it if it is slower than the configured latency percentile.
+   */
+  private GeocodingOutput attempt(String address) throws Exception {
+    final long hedgeDelay = this.hedgeDelayNanos;
+    final ExecutorService executor = this.hedgeExecutor;
+    if (hedgeDelay < 0 || executor == null) {
+      return timedGeocode(address);
+    }
+
+    final CompletableFuture<GeocodingOutput> result = new CompletableFuture<>();
+    // the result fails as soon as no request is outstanding, with the error of the last one
+    final AtomicInteger outstanding = new AtomicInteger(1);
+    final AtomicReference<Exception> error = new AtomicReference<>();
+    final Runnable request = () -> {
+      try {
+        result.complete(timedGeocode(address));
+      } catch (Exception e) {
+        error.set(e);
+        if (outstanding.decrementAndGet() == 0) {
+          result.completeExceptionally(e);
+        }
+      }
+    };
+    try {
+      executor.execute(request);
+    } catch (EsRejectedExecutionException e) {
+      return timedGeocode(address);
+    }
+
+    try {
+      try {
+        return result.get(hedgeDelay, TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        // only hedge while the first request is still outstanding
+        if (outstanding.getAndUpdate(n -> n == 0 ? 0 : n + 1) > 0) {
+          hedge(executor, request, result, outstanding, error);
+        }
+      }
+      return result.get();
+    } catch (ExecutionException e) {
+      throw unwrap(e);
+    }
+  }
+
+  private void hedge(ExecutorService executor, Runnable request, CompletableFuture<GeocodingOutput> result,
+                     AtomicInteger outstanding, AtomicReference<Exception> error) {
+    if (this.rateLimiter.tryAcquire()) {
+      try {
+        executor.execute(request);
+        this.stats.increment(GeocodingStats.Counter.API_HEDGED);
+        return;
+      } catch (EsRejectedExecutionException rejected) {
+        // keep waiting for the first request
+      }
+    }
+    if (outstanding.decrementAndGet() == 0) {
+      // the first request failed in the meantime
+      result.completeExceptionally(error.get());
+    }
+  }
+
+  private static Exception unwrap(ExecutionException e) {
+    final Throwable cause = e.getCause();
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return cause instanceof Exception ? (Exception) cause : e;
+  }
+
+  private GeocodingOutput timedGeocode(String address) throws Exception {
+    this.stats.increment(GeocodingStats.Counter.API_CALLS);
+    final long start = System.nanoTime();
+    boolean success = false;
+    try {
+      final GeocodingOutput output = this.delegate.geocode(address);
+      success = true;
+      return output;
+    } finally {
+      final long elapsed = System.nanoTime() - start;
+      this.stats.record(GeocodingStats.Timer.API, elapsed);
+      if (success) {
+        recordLatency(elapsed);
+      }
+    }
+  }
+
+  /**
+   * Records the latency of a successful request and periodically recomputes the hedging delay.
+   */
+  private void recordLatency(long nanos) {
+    if (this.hedgePercentile <= 0) {
+      return;
+    }
+    final long count = this.recorded.getAndIncrement();
+    this.latencies.set((int) (count % LATENCY_SAMPLES), nanos);
+    if (count + 1 >= LATENCY_SAMPLES && (count + 1) % LATENCY_REFRESH == 0) {
+      final long[] samples = new long[LATENCY_SAMPLES];
+      for (int i = 0; i < samples.length; i++) {
+        samples[i] = this.latencies.get(i);
+      }
+      Arrays.sort(samples);
+      this.hedgeDelayNanos = samples[samples.length * this.hedgePercentile / 100];
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.delegate.close();
+  }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.geo.GeoPoint;
+import org.elasticsearch.common.geo.GeoUtils;
+import org.elasticsearch.common.unit.DistanceUnit;
+import org.elasticsearch.ingest.AbstractProcessor;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.elasticsearch.ingest.ConfigurationUtils.newConfigurationException;
+import static org.elasticsearch.ingest.ConfigurationUtils.readOptionalStringProperty;
+import static org.elasticsearch.ingest.ConfigurationUtils.readStringProperty;
+
+public class ReverseGeocodingProcessor extends AbstractProcessor {
+
+  public static final String TYPE = "reverse_geocoding";
+
+  private final PlaceIndex placeIndex;
+  private final String pointField;
+  private final String targetField;
+  private final String errorsField;
+  private final double maxDistance;
+
+  public ReverseGeocodingProcessor(PlaceIndex placeIndex, String tag, String pointField, String targetField,
+                                   double maxDistance) {
+    super(tag);
+    this.placeIndex = placeIndex;
+    this.pointField = pointField;
+    this.targetField = targetField;
+    this.errorsField = targetField + "._errors";
+    this.maxDistance = maxDistance;
+  }
+
+  @Override
+  public void execute(IngestDocument ingestDocument) {
+    if (ingestDocument == null) {
+      return;
+    }
+    if (!ingestDocument.hasField(pointField)) {
+      return;
+    }
+
+    final Object value = ingestDocument.getFieldValue(pointField, Object.class, true);
+    if (value == null) {
+      ingestDocument.setFieldValue(this.targetField, null);
+      return;
+    }
+
+    final GeoPoint point;
+    try {
+      point = GeoUtils.parseGeoPoint(value, true);
+    } catch (Throwable t) {
+      ingestDocument.setFieldValue(this.errorsField, Collections.singletonList(t.getMessage()));
+      return;
+    }
+
+    final int position = this.placeIndex.nearest(point.lat(), point.lon(), this.maxDistance);
+    if (position < 0) {
+      ingestDocument.setFieldValue(this.targetField, null);
+      return;
+    }
+
+    final String[] columns = this.placeIndex.columns();
+    final Map<String, Object> place = new HashMap<>();
+    for (int column = 0; column < columns.length; column++) {
+      final String attribute = this.placeIndex.value(position, column);
+      if (attribute != null) {
+        place.put(columns[column], attribute);
+      }
+    }
+    ingestDocument.setFieldValue(this.targetField, place);
+  }
+
+  @Override
+  public String getType() {
+    return TYPE;
+  }
+
+  public static final class Factory implements Processor.Factory {
+
+    final PlaceIndex placeIndex;
+
+    /**
+     * @param placeIndex - The index of places, or null if no places file is available on this node.
+     */
+    Factory(PlaceIndex placeIndex) {
+      this.placeIndex = placeIndex;
+    }
+
+    @Override
+    public ReverseGeocodingProcessor create(Map<String, Processor.Factory> factories, String tag,
+                                           Map<String, Object> config) {
+      String field = readStringProperty(TYPE, tag, config, "field");
+      String targetField = readStringProperty(TYPE, tag, config, "target_field", "place");
+      String maxDistance = readOptionalStringProperty(TYPE, tag, config, "max_distance");
+
+      if (placeIndex == null) {
+        throw newConfigurationException(TYPE, tag, "field",
+            "no places file is available; check the [" + IngestGeocodingPlugin.PLACES_FILE.getKey() + "] setting");
+      }
+      double maxDistanceMeters = Double.POSITIVE_INFINITY;
+      if (maxDistance != null) {
+        try {
+          maxDistanceMeters = DistanceUnit.parse(maxDistance, DistanceUnit.DEFAULT, DistanceUnit.METERS);
+        } catch (Exception e) {
+          throw newConfigurationException(TYPE, tag, "max_distance", e);
+        }
+      }
+
+      return new ReverseGeocodingProcessor(placeIndex, tag, field, targetField, maxDistanceMeters);
+    }
+  }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TransportGeocodingBulkAction
+    extends HandledTransportAction<GeocodingBulkAction.Request, GeocodingBulkAction.Response> {
+
+  private final GeocodingService geocodingService;
+  private final int maxConcurrency;
+
+  @Inject
+  public TransportGeocodingBulkAction(Settings settings, ThreadPool threadPool, TransportService transportService,
+                                      ActionFilters actionFilters,
+                                      IndexNameExpressionResolver indexNameExpressionResolver,
+                                      GeocodingService geocodingService) {
+    super(settings, GeocodingBulkAction.NAME, threadPool, transportService, actionFilters,
+        indexNameExpressionResolver, GeocodingBulkAction.Request::new);
+    this.geocodingService = geocodingService;
+    this.maxConcurrency = IngestGeocodingPlugin.BULK_MAX_CONCURRENCY.get(settings);
+  }
+
+  @Override
+  protected void doExecute(GeocodingBulkAction.Request request, ActionListener<GeocodingBulkAction.Response> listener) {
+    final long start = System.nanoTime();
+    // variants of the same address are looked up once
+    final Map<AddressFingerprint, String> distinct = new LinkedHashMap<>();
+    for (String address : request.getAddresses()) {
+      distinct.putIfAbsent(AddressFingerprint.of(address), address);
+    }
+    final List<Map.Entry<AddressFingerprint, String>> addresses = new ArrayList<>(distinct.entrySet());
+    // the geocoding thread pool is shared with ingestion, which must not be crowded out
+    final int concurrency = Math.min(request.getConcurrency(), this.maxConcurrency);
+    this.geocodingService.geocodeBulk(addresses, concurrency).whenComplete((outputs, e) -> {
+      if (e != null) {
+        listener.onFailure(e instanceof Exception ? (Exception) e : new RuntimeException(e));
+        return;
+      }
+      final List<GeocodingBulkAction.Result> results = new ArrayList<>(outputs.length);
+      for (int i = 0; i < outputs.length; i++) {
+        results.add(new GeocodingBulkAction.Result(addresses.get(i).getValue(), outputs[i]));
+      }
+      listener.onResponse(new GeocodingBulkAction.Response(TimeValue.nsecToMSec(System.nanoTime() - start),
+          request.getAddresses().size(), results));
+    });
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Exports or imports the cache snapshot of each selected node; snapshot files are read and written on the generic
+ * thread pool.
+ */
+public class TransportGeocodingCacheSnapshotAction
+    extends TransportNodesAction<GeocodingCacheSnapshotAction.Request, GeocodingCacheSnapshotAction.Response,
+    GeocodingCacheSnapshotAction.NodeRequest, GeocodingCacheSnapshotAction.NodeResponse> {
+
+  private final GeocodingService geocodingService;
+
+  @Inject
+  public TransportGeocodingCacheSnapshotAction(Settings settings, ThreadPool threadPool,
+                                               ClusterService clusterService, TransportService transportService,
+                                               ActionFilters actionFilters,
+                                               IndexNameExpressionResolver indexNameExpressionResolver,
+                                               GeocodingService geocodingService) {
+    super(settings, GeocodingCacheSnapshotAction.NAME, threadPool, clusterService, transportService, actionFilters,
+        indexNameExpressionResolver, GeocodingCacheSnapshotAction.Request::new,
+        GeocodingCacheSnapshotAction.NodeRequest::new, ThreadPool.Names.GENERIC,
+        GeocodingCacheSnapshotAction.NodeResponse.class);
+    this.geocodingService = geocodingService;
+  }
+
+  @Override
+  protected GeocodingCacheSnapshotAction.Response newResponse(GeocodingCacheSnapshotAction.Request request,
+                                                              List<GeocodingCacheSnapshotAction.NodeResponse> nodes,
+                                                              List<FailedNodeException> failures) {
+    return new GeocodingCacheSnapshotAction.Response(this.clusterService.getClusterName(), nodes, failures);
+  }
+
+  @Override
+  protected GeocodingCacheSnapshotAction.NodeRequest newNodeRequest(String nodeId,
+                                                                    GeocodingCacheSnapshotAction.Request request) {
+    return new GeocodingCacheSnapshotAction.NodeRequest(nodeId, request.getOperation());
+  }
+
+  @Override
+  protected GeocodingCacheSnapshotAction.NodeResponse newNodeResponse() {
+    return new GeocodingCacheSnapshotAction.NodeResponse();
+  }
+
+  @Override
+  protected GeocodingCacheSnapshotAction.NodeResponse nodeOperation(
+      GeocodingCacheSnapshotAction.NodeRequest request) {
+    final boolean export = request.getOperation() == GeocodingCacheSnapshotAction.Operation.EXPORT;
+    final Path file = export ? this.geocodingService.getCacheSnapshotExportFile()
+        : this.geocodingService.getCacheSnapshotImportFile();
+    try {
+      final int entries = export ? this.geocodingService.exportCache() : this.geocodingService.importCache();
+      return new GeocodingCacheSnapshotAction.NodeResponse(this.clusterService.localNode(), entries, file.toString());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to " + (export ? "export" : "import") + " the geocoding cache snapshot ["
+          + file + "]", e);
+    }
+  }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+
+public class TransportGeocodingStatsAction extends TransportNodesAction<GeocodingStatsAction.Request,
+    GeocodingStatsAction.Response, GeocodingStatsAction.NodeRequest, GeocodingStatsAction.NodeResponse> {
+
+  private final GeocodingService geocodingService;
+
+  @Inject
+  public TransportGeocodingStatsAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                       TransportService transportService, ActionFilters actionFilters,
+                                       IndexNameExpressionResolver indexNameExpressionResolver,
+                                       GeocodingService geocodingService) {
+    super(settings, GeocodingStatsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+        indexNameExpressionResolver, GeocodingStatsAction.Request::new, GeocodingStatsAction.NodeRequest::new,
+        ThreadPool.Names.MANAGEMENT, GeocodingStatsAction.NodeResponse.class);
+    this.geocodingService = geocodingService;
+  }
+
+  @Override
+  protected GeocodingStatsAction.Response newResponse(GeocodingStatsAction.Request request,
+                                                      List<GeocodingStatsAction.NodeResponse> nodes,
+                                                      List<FailedNodeException> failures) {
+    return new GeocodingStatsAction.Response(this.clusterService.getClusterName(), nodes, failures);
+  }
+
+  @Override
+  protected GeocodingStatsAction.NodeRequest newNodeRequest(String nodeId, GeocodingStatsAction.Request request) {
+    return new GeocodingStatsAction.NodeRequest(nodeId);
+  }
+
+  @Override
+  protected GeocodingStatsAction.NodeResponse newNodeResponse() {
+    return new GeocodingStatsAction.NodeResponse();
+  }
+
+  @Override
+  protected GeocodingStatsAction.NodeResponse nodeOperation(GeocodingStatsAction.NodeRequest request) {
+    return new GeocodingStatsAction.NodeResponse(this.clusterService.localNode(),
+        this.geocodingService.getStats().snapshot());
+  }
+
+}
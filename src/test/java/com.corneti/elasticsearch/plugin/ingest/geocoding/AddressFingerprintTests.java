@@ -0,0 +1,76 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+public class AddressFingerprintTests extends ESTestCase {
+
+  public void testCanonicalize() {
+    assertThat(AddressFingerprint.canonicalize("1600 Amphitheatre Pkwy"), equalTo("1600 amphitheatre parkway"));
+    assertThat(AddressFingerprint.canonicalize("  1600  AMPHITHEATRE parkway, "), equalTo("1600 amphitheatre parkway"));
+    assertThat(AddressFingerprint.canonicalize("12 N. Main St., Springfield"),
+        equalTo("12 north main street springfield"));
+    assertThat(AddressFingerprint.canonicalize("Stone Rd"), equalTo("stone road"));
+    assertThat(AddressFingerprint.canonicalize("O'Connell St"), equalTo("oconnell street"));
+    assertThat(AddressFingerprint.canonicalize("Via Mauro Tesi, Zocca, Italy"), equalTo("via mauro tesi zocca italy"));
+    assertThat(AddressFingerprint.canonicalize("Stra\u00dfe 5"), equalTo("stra\u00dfe 5"));
+    assertThat(AddressFingerprint.canonicalize(" ,;- "), equalTo(""));
+  }
+
+  public void testVariantsShareFingerprint() {
+    final AddressFingerprint fingerprint = AddressFingerprint.of("1600 Amphitheatre Pkwy");
+    assertThat(AddressFingerprint.of("1600  amphitheatre parkway,"), equalTo(fingerprint));
+    assertThat(AddressFingerprint.of("1600 Amphitheatre Parkway").hashCode(), is(fingerprint.hashCode()));
+    assertThat(AddressFingerprint.of("1601 Amphitheatre Parkway"), not(equalTo(fingerprint)));
+    assertThat(AddressFingerprint.of("1600 Amphitheatre"), not(equalTo(fingerprint)));
+  }
+
+  public void testFingerprintMatchesCanonicalForm() {
+    final String address = randomRealisticUnicodeOfLengthBetween(0, 40);
+    final String canonical = AddressFingerprint.canonicalize(address);
+    assertThat(AddressFingerprint.of(address), equalTo(AddressFingerprint.of(canonical)));
+  }
+
+  public void testHexForm() {
+    final AddressFingerprint fingerprint = new AddressFingerprint(randomLong(), randomLong());
+    final String hex = String.format(Locale.ROOT, "%016x%016x", fingerprint.h1, fingerprint.h2);
+    assertThat(fingerprint.toString(), equalTo(hex));
+    assertThat(fingerprint.matches(hex), is(true));
+    assertThat(fingerprint.matches(hex.substring(1)), is(false));
+    assertThat(fingerprint.matches(AddressFingerprint.of("somewhere").toString()), is(false));
+    assertThat(new AddressFingerprint(1, 15).toString(), equalTo("0000000000000001000000000000000f"));
+  }
+
+  public void testNoCollisions() {
+    final Set<AddressFingerprint> fingerprints = new HashSet<>();
+    final int addresses = 100000;
+    for (int i = 0; i < addresses; i++) {
+      fingerprints.add(AddressFingerprint.of(i + " main street"));
+    }
+    assertThat(fingerprints.size(), is(addresses));
+  }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class FieldPathTests extends ESTestCase {
+
+  private static IngestDocument document() {
+    final Map<String, Object> address = new HashMap<>();
+    address.put("street", "1600 Amphitheatre Parkway");
+    address.put("unit", null);
+    final Map<String, Object> source = new HashMap<>();
+    source.put("address", address);
+    source.put("addresses", Arrays.asList("first", "second"));
+    source.put("name", "Google");
+    return new IngestDocument("index", "_doc", "1", null, null, null, null, source);
+  }
+
+  public void testGet() {
+    final IngestDocument document = document();
+    assertThat(new FieldPath("address.street").get(document), equalTo("1600 Amphitheatre Parkway"));
+    assertThat(new FieldPath("_source.address.street").get(document), equalTo("1600 Amphitheatre Parkway"));
+    assertThat(new FieldPath("address.unit").get(document), nullValue());
+    assertThat(new FieldPath("address.city").get(document), sameInstance(FieldPath.MISSING));
+    assertThat(new FieldPath("name.first").get(document), sameInstance(FieldPath.MISSING));
+    assertThat(new FieldPath("address.unit.number").get(document), sameInstance(FieldPath.MISSING));
+    assertThat(new FieldPath("addresses.1").get(document), equalTo("second"));
+    assertThat(new FieldPath("addresses.2").get(document), sameInstance(FieldPath.MISSING));
+    assertThat(new FieldPath("_ingest.timestamp").get(document),
+        equalTo(document.getFieldValue("_ingest.timestamp", Object.class)));
+  }
+
+  public void testSet() {
+    final IngestDocument document = document();
+    new FieldPath("location.coordinates").set(document, "here");
+    assertThat(document.getFieldValue("location.coordinates", String.class), equalTo("here"));
+    new FieldPath("_source.address.city").set(document, "Mountain View");
+    assertThat(document.getFieldValue("address.city", String.class), equalTo("Mountain View"));
+    new FieldPath("addresses.0").set(document, "third");
+    assertThat(document.getFieldValue("addresses.0", String.class), equalTo("third"));
+    new FieldPath("_ingest.geocoded").set(document, true);
+    assertThat(document.getFieldValue("_ingest.geocoded", Boolean.class), is(true));
+  }
+
+  public void testSetFailsLikeIngestDocument() {
+    final IngestDocument document = document();
+    final IllegalArgumentException expected = expectThrows(IllegalArgumentException.class,
+        () -> document.setFieldValue("name.first", "Larry"));
+    final IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+        () -> new FieldPath("name.first").set(document, "Larry"));
+    assertThat(e.getMessage(), equalTo(expected.getMessage()));
+  }
+
+  public void testInvalidPath() {
+    expectThrows(IllegalArgumentException.class, () -> new FieldPath(""));
+    expectThrows(IllegalArgumentException.class, () -> new FieldPath("_source."));
+  }
+
+}
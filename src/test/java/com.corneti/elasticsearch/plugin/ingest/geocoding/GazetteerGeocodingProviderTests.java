@@ -0,0 +1,106 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.CACHE_MAX_ENTRIES;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.RATE_LIMIT_BURST;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.RATE_LIMIT_CLUSTER_QPS;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.RATE_LIMIT_MAX_WAIT;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class GazetteerGeocodingProviderTests extends ESTestCase {
+
+  private GazetteerGeocodingProvider createProvider(String... lines) throws Exception {
+    final Path file = createTempFile();
+    Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+    return new GazetteerGeocodingProvider(file);
+  }
+
+  public void testOpenAddressesExtract() throws Exception {
+    try (GazetteerGeocodingProvider provider = createProvider(
+        "LON,LAT,NUMBER,STREET,UNIT,CITY,DISTRICT,REGION,POSTCODE,ID,HASH",
+        "-122.0855565,37.4223827,1600,Amphitheatre Parkway,,Mountain View,,CA,94043,,5f3a",
+        "-73.9856644,40.7484405,350,5th Avenue,,New York,,NY,10118,,9c1e",
+        "-122.4192363,37.7792808,1,Dr Carlton B Goodlett Place,,San Francisco,,CA,94102,,04aa",
+        "not,a,place")) {
+      assertThat(provider.size(), is(3));
+
+      final GeocodingOutput google = provider.geocode("1600 Amphitheatre Parkway Mountain View, CA 94043 USA");
+      assertThat(google.getLatitude(), equalTo(37.4223827));
+      assertThat(google.getLongitude(), equalTo(-122.0855565));
+
+      final GeocodingOutput empireState = provider.geocode("350 5th avenue, new york");
+      assertThat(empireState.getLatitude(), equalTo(40.7484405));
+
+      assertThat(provider.geocode("Via Mauro Tesi, Zocca, Italy"), nullValue());
+      assertThat(provider.geocode("CA"), nullValue());
+      assertThat(provider.geocode(""), nullValue());
+    }
+  }
+
+  public void testTabSeparatedWithQuotes() throws Exception {
+    try (GazetteerGeocodingProvider provider = createProvider(
+        "name\tlatitude\tlongitude",
+        "\"Zocca, Italy\"\t44.3459\t10.9925",
+        "Modena\t44.6471\t10.9252")) {
+      assertThat(provider.size(), is(2));
+      assertThat(provider.geocode("zocca").getLatitude(), equalTo(44.3459));
+      assertThat(provider.geocode("MODENA, Italy").getLongitude(), equalTo(10.9252));
+    }
+  }
+
+  public void testMissingCoordinateColumns() throws Exception {
+    final IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+        () -> createProvider("name,city", "a,b"));
+    assertThat(e.getMessage().endsWith("has no latitude or longitude column."), is(true));
+  }
+
+  public void testLookupsAreNotRateLimited() throws Exception {
+    final Settings settings = Settings.builder()
+        .put(CACHE_MAX_ENTRIES.getKey(), 0)
+        .put(RATE_LIMIT_CLUSTER_QPS.getKey(), 0.01)
+        .put(RATE_LIMIT_BURST.getKey(), 1)
+        .put(RATE_LIMIT_MAX_WAIT.getKey(), "0s")
+        .build();
+    final GeocodingService service = new GeocodingService(settings, createProvider(
+        "name,latitude,longitude",
+        "Modena,44.6471,10.9252"));
+    service.start();
+
+    try {
+      for (int i = 0; i < 10; i++) {
+        assertThat(service.geocode("Modena").getLatitude(), equalTo(44.6471));
+      }
+      assertThat(service.getCircuitBreaker(), nullValue());
+    } finally {
+      service.stop();
+      service.close();
+    }
+  }
+
+}
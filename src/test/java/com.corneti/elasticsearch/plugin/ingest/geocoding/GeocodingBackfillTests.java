@@ -0,0 +1,211 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.client.NoOpClient;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.GeocodingProcessorTests.KNOWN_ADDRESS;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.BACKFILL_FLUSH_INTERVAL;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.BACKFILL_QUEUE_SIZE;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class GeocodingBackfillTests extends ESTestCase {
+
+  /**
+   * This client records the partial updates it receives, and fails those of the documents marked as missing.
+   */
+  static final class UpdateClient extends NoOpClient {
+
+    final Map<String, UpdateRequest> updates = new ConcurrentHashMap<>();
+    final Set<String> missing = ConcurrentHashMap.newKeySet();
+
+    UpdateClient(String testName) {
+      super(testName);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected <Request extends ActionRequest, Response extends ActionResponse,
+        RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+        Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+      if (action == BulkAction.INSTANCE) {
+        final BulkRequest bulk = (BulkRequest) request;
+        final BulkItemResponse[] items = new BulkItemResponse[bulk.numberOfActions()];
+        for (int i = 0; i < items.length; i++) {
+          final UpdateRequest update = (UpdateRequest) bulk.requests().get(i);
+          final ShardId shardId = new ShardId(update.index(), "_na_", 0);
+          if (missing.contains(update.id())) {
+            items[i] = new BulkItemResponse(i, DocWriteRequest.OpType.UPDATE, new BulkItemResponse.Failure(
+                update.index(), update.type(), update.id(),
+                new DocumentMissingException(shardId, update.type(), update.id())));
+          } else {
+            updates.put(update.id(), update);
+            items[i] = new BulkItemResponse(i, DocWriteRequest.OpType.UPDATE, new UpdateResponse(shardId,
+                update.type(), update.id(), 2, DocWriteResponse.Result.UPDATED));
+          }
+        }
+        listener.onResponse((Response) new BulkResponse(items, 1));
+      } else {
+        super.doExecute(action, request, listener);
+      }
+    }
+
+  }
+
+  private static final Settings SETTINGS = Settings.builder()
+      .put(BACKFILL_FLUSH_INTERVAL.getKey(), "1h")
+      .build();
+
+  private static GeocodingBackfill.Entry entry(String id, GeocodingOutput output) {
+    return new GeocodingBackfill.Entry("index", "_doc", id, null, CompletableFuture.completedFuture(output),
+        o -> Collections.singletonMap("latitude", o.getLatitude()));
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testDeferredDocumentIsBackfilled() throws Exception {
+    final UpdateClient client = new UpdateClient(getTestName());
+    final CountDownLatch release = new CountDownLatch(1);
+    final GeocodingServiceTests.CountingGeocodingService service =
+        new GeocodingServiceTests.CountingGeocodingService(SETTINGS, release);
+    final GeocodingBackfill backfill = new GeocodingBackfill(SETTINGS, client, client.threadPool(), service.getStats());
+    final ExecutorService executor = EsExecutors.newFixed("geocoding", 1, 10,
+        EsExecutors.daemonThreadFactory("geocoding"), new ThreadContext(Settings.EMPTY));
+    service.setBackfill(backfill);
+    service.setExecutor(executor);
+    service.start();
+
+    try {
+      final Map<String, Object> source = new HashMap<>();
+      source.put("address", KNOWN_ADDRESS);
+      final IngestDocument ingestDocument = new IngestDocument("index", "_doc", "1", null, null, null, null, source);
+      final GeocodingProcessor processor = GeocodingProcessorTests.processor(service, "latency_budget", "1ms");
+      processor.execute(ingestDocument);
+
+      assertThat(ingestDocument.getFieldValue("loc.pending", Boolean.class), is(true));
+      assertThat(ingestDocument.hasField("loc.coordinates"), is(false));
+      assertThat(backfill.pendingCount(), is(1));
+      assertThat(service.getStats().snapshot().get(GeocodingStats.Counter.DEFERRED), is(1L));
+
+      // nothing is written until the lookup completes
+      backfill.flush();
+      assertThat(client.updates.size(), is(0));
+
+      release.countDown();
+      assertBusy(() -> {
+        backfill.flush();
+        assertThat(client.updates.size(), is(1));
+      });
+      final Map<String, Object> update = client.updates.get("1").doc().sourceAsMap();
+      final Map<String, Object> location = (Map<String, Object>) update.get("loc");
+      assertThat(location.get("pending"), is(false));
+      assertThat(((Map<String, Object>) location.get("coordinates")).get("lat"), equalTo(1.0));
+      assertThat(((Map<String, Object>) location.get("coordinates")).get("lon"), equalTo(-1.0));
+      assertThat(backfill.pendingCount(), is(0));
+      assertThat(service.getStats().snapshot().get(GeocodingStats.Counter.BACKFILLED), is(1L));
+    } finally {
+      release.countDown();
+      service.stop();
+      service.close();
+      terminate(executor);
+      client.close();
+    }
+  }
+
+  public void testMissingDocumentsAreRetried() throws Exception {
+    final UpdateClient client = new UpdateClient(getTestName());
+    final GeocodingStats stats = new GeocodingStats();
+    final GeocodingBackfill backfill = new GeocodingBackfill(SETTINGS, client, client.threadPool(), stats);
+
+    try {
+      client.missing.add("1");
+      client.missing.add("2");
+      assertThat(backfill.defer(entry("1", new GeocodingOutput(1.0, -1.0))), is(true));
+      assertThat(backfill.defer(entry("2", new GeocodingOutput(2.0, -2.0))), is(true));
+      backfill.flush();
+      assertThat(client.updates.size(), is(0));
+      assertThat(backfill.pendingCount(), is(2));
+
+      // the first document gets indexed, the second never does
+      client.missing.remove("1");
+      for (int i = 1; i < GeocodingBackfill.MAX_ATTEMPTS; i++) {
+        backfill.flush();
+      }
+      assertThat(client.updates.get("1").doc().sourceAsMap().get("latitude"), equalTo(1.0));
+      assertThat(client.updates.get("2"), nullValue());
+      assertThat(backfill.pendingCount(), is(0));
+      assertThat(stats.snapshot().get(GeocodingStats.Counter.BACKFILLED), is(1L));
+      assertThat(stats.snapshot().get(GeocodingStats.Counter.BACKFILL_FAILURES), is(1L));
+    } finally {
+      backfill.close();
+      client.close();
+    }
+  }
+
+  public void testFullQueueRejectsDocuments() throws Exception {
+    final UpdateClient client = new UpdateClient(getTestName());
+    final Settings settings = Settings.builder()
+        .put(SETTINGS)
+        .put(BACKFILL_QUEUE_SIZE.getKey(), 1)
+        .build();
+    final GeocodingBackfill backfill = new GeocodingBackfill(settings, client, client.threadPool(),
+        new GeocodingStats());
+
+    try {
+      assertThat(backfill.defer(entry("1", new GeocodingOutput(1.0, -1.0))), is(true));
+      assertThat(backfill.defer(entry("2", new GeocodingOutput(2.0, -2.0))), is(false));
+      backfill.flush();
+      assertThat(client.updates.size(), is(1));
+      assertThat(backfill.defer(entry("2", new GeocodingOutput(2.0, -2.0))), is(true));
+    } finally {
+      backfill.close();
+      client.close();
+    }
+  }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class GeocodingBulkActionTests extends ESTestCase {
+
+  private static List<String> parse(String body) throws IOException {
+    try (XContentParser parser = JsonXContent.jsonXContent.createParser(NamedXContentRegistry.EMPTY,
+        DeprecationHandler.THROW_UNSUPPORTED_OPERATION, body)) {
+      return RestGeocodingBulkAction.parseAddresses(parser);
+    }
+  }
+
+  public void testParseObject() throws Exception {
+    assertThat(parse("{\"addresses\": [\"Milan\", \"Rome\"]}"), equalTo(Arrays.asList("Milan", "Rome")));
+  }
+
+  public void testParseNewlineDelimited() throws Exception {
+    assertThat(parse("\"Milan\"\n{\"address\": \"Rome\"}\n\"Turin\"\n"),
+        equalTo(Arrays.asList("Milan", "Rome", "Turin")));
+  }
+
+  public void testParseInvalidBody() throws Exception {
+    expectThrows(ParsingException.class, () -> parse("{\"addresses\": [1]}"));
+    expectThrows(ParsingException.class, () -> parse("{\"location\": \"Milan\"}"));
+    expectThrows(ParsingException.class, () -> parse("[\"Milan\"]"));
+  }
+
+  public void testValidation() throws Exception {
+    assertThat(new GeocodingBulkAction.Request(Arrays.asList("Milan")).validate(), nullValue());
+    assertThat(new GeocodingBulkAction.Request(Arrays.asList()).validate().validationErrors().size(), is(1));
+    assertThat(new GeocodingBulkAction.Request(Arrays.asList("Milan")).setConcurrency(0).validate()
+        .validationErrors().size(), is(1));
+    assertThat(new GeocodingBulkAction.Request(Arrays.asList("Milan"))
+        .setConcurrency(GeocodingBulkAction.Request.MAX_CONCURRENCY + 1).validate().validationErrors().size(), is(1));
+  }
+
+  public void testResponseSerialization() throws Exception {
+    final GeocodingBulkAction.Response response = new GeocodingBulkAction.Response(10, 4, Arrays.asList(
+        new GeocodingBulkAction.Result("Milan", new GeocodingOutput(1.0, -1.0)),
+        new GeocodingBulkAction.Result("nowhere", null),
+        new GeocodingBulkAction.Result("invalid", new GeocodingOutput(new Exception("Invalid request.")))));
+
+    final BytesStreamOutput out = new BytesStreamOutput();
+    response.writeTo(out);
+    final GeocodingBulkAction.Response read = new GeocodingBulkAction.Response();
+    read.readFrom(out.bytes().streamInput());
+    assertThat(read.getResults().size(), is(3));
+    assertThat(read.getResults().get(0).getLatitude(), equalTo(1.0));
+    assertThat(read.getResults().get(1).getLatitude(), nullValue());
+    assertThat(read.getResults().get(2).getErrors().size(), is(1));
+
+    final String json = Strings.toString(read);
+    assertThat(json, containsString("\"addresses\":4,\"distinct\":3,\"found\":1,\"errors\":1"));
+    assertThat(json, containsString("{\"address\":\"Milan\",\"location\":{\"lat\":1.0,\"lon\":-1.0}}"));
+  }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.GeocodingProcessorTests.KNOWN_ADDRESS;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.CACHE_TTL;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class GeocodingCacheSnapshotTests extends ESTestCase {
+
+  private static GeocodingCacheSnapshot snapshot(int size) {
+    final List<Map.Entry<AddressFingerprint, GeocodingOutput>> entries = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      entries.add(new AbstractMap.SimpleEntry<>(AddressFingerprint.of("address " + i),
+          new GeocodingOutput((double) i, (double) -i)));
+    }
+    return GeocodingCacheSnapshot.of(entries);
+  }
+
+  public void testWriteAndRead() throws Exception {
+    final int size = randomIntBetween(0, 1000);
+    final Path file = createTempDir().resolve("geocoding").resolve(GeocodingCacheSnapshot.FILE_NAME);
+    snapshot(size).write(file);
+
+    final GeocodingCacheSnapshot snapshot = GeocodingCacheSnapshot.read(file);
+    assertThat(snapshot.size(), is(size));
+    for (int i = 0; i < size; i++) {
+      final GeocodingOutput output = snapshot.get(AddressFingerprint.of("address " + i));
+      assertThat(output.getLatitude(), equalTo((double) i));
+      assertThat(output.getLongitude(), equalTo((double) -i));
+    }
+    assertThat(snapshot.get(AddressFingerprint.of("nowhere")), nullValue());
+  }
+
+  public void testReadInvalidFile() throws Exception {
+    final Path file = createTempDir().resolve(GeocodingCacheSnapshot.FILE_NAME);
+    Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13});
+    expectThrows(IOException.class, () -> GeocodingCacheSnapshot.read(file));
+  }
+
+  public void testLoadedEntriesAreMovedToTheCache() throws Exception {
+    final GeocodingCache cache = new GeocodingCache(Settings.EMPTY);
+    cache.load(snapshot(10));
+    assertThat(cache.count(), is(0));
+
+    assertThat(cache.get(AddressFingerprint.of("address 3")).getLatitude(), equalTo(3.0));
+    assertThat(cache.count(), is(1));
+    assertThat(cache.get(AddressFingerprint.of("nowhere")), nullValue());
+
+    // the snapshot of the cache includes the loaded entries not looked up yet
+    assertThat(cache.snapshot().size(), is(10));
+  }
+
+  public void testLoadedEntriesExpire() throws Exception {
+    final Settings settings = Settings.builder()
+        .put(CACHE_TTL.getKey(), "1ms")
+        .build();
+    final GeocodingCache cache = new GeocodingCache(settings);
+    cache.load(snapshot(10));
+    assertBusy(() -> assertThat(cache.get(AddressFingerprint.of("address 3")), nullValue()));
+    assertThat(cache.snapshot().size(), is(0));
+  }
+
+  public void testExportAndImport() throws Exception {
+    final Path directory = createTempDir();
+    final Path file = directory.resolve(GeocodingCacheSnapshot.FILE_NAME);
+
+    final GeocodingServiceTests.CountingGeocodingService exporting =
+        new GeocodingServiceTests.CountingGeocodingService(Settings.EMPTY);
+    exporting.setCacheSnapshotFiles(file, directory.resolve("missing"));
+    exporting.start();
+    try {
+      exporting.geocode(KNOWN_ADDRESS);
+      exporting.geocode("unknown");
+      assertThat(exporting.exportCache(), is(1));
+    } finally {
+      exporting.stop();
+      exporting.close();
+    }
+
+    // the snapshot is imported when the service is started
+    final GeocodingServiceTests.CountingGeocodingService importing =
+        new GeocodingServiceTests.CountingGeocodingService(Settings.EMPTY);
+    importing.setCacheSnapshotFiles(directory.resolve("export"), file);
+    importing.start();
+    try {
+      assertThat(importing.geocode(KNOWN_ADDRESS).getLatitude(), equalTo(1.0));
+      assertThat(importing.lookups.get(), is(0));
+      assertThat(importing.importCache(), is(1));
+    } finally {
+      importing.stop();
+      importing.close();
+    }
+  }
+
+}
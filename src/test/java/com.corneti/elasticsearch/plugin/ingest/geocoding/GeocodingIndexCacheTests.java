@@ -0,0 +1,157 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.admin.indices.create.CreateIndexAction;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.client.NoOpClient;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.GeocodingProcessorTests.KNOWN_ADDRESS;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.SHARED_CACHE_QUEUE_SIZE;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class GeocodingIndexCacheTests extends ESTestCase {
+
+  /**
+   * This client keeps the documents of the shared cache index in memory.
+   */
+  static final class IndexClient extends NoOpClient {
+
+    final Map<String, BytesReference> documents = new ConcurrentHashMap<>();
+    final AtomicInteger bulks = new AtomicInteger();
+    final AtomicInteger creates = new AtomicInteger();
+
+    IndexClient(String testName) {
+      super(testName);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected <Request extends ActionRequest, Response extends ActionResponse,
+        RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+        Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+      if (action == CreateIndexAction.INSTANCE) {
+        creates.incrementAndGet();
+        listener.onResponse((Response) new CreateIndexResponse(true, true, GeocodingIndexCache.INDEX) {
+        });
+      } else if (action == BulkAction.INSTANCE) {
+        bulks.incrementAndGet();
+        final BulkRequest bulk = (BulkRequest) request;
+        for (DocWriteRequest<?> write : bulk.requests()) {
+          final IndexRequest index = (IndexRequest) write;
+          documents.put(index.id(), index.source());
+        }
+        listener.onResponse((Response) new BulkResponse(new BulkItemResponse[0], 1));
+      } else if (action == GetAction.INSTANCE) {
+        final GetRequest get = (GetRequest) request;
+        final BytesReference source = documents.get(get.id());
+        listener.onResponse((Response) new GetResponse(new GetResult(get.index(), get.type(), get.id(), 1,
+            source != null, source, Collections.emptyMap())));
+      } else {
+        super.doExecute(action, request, listener);
+      }
+    }
+
+  }
+
+  public void testResultsAreSharedBetweenNodes() throws Exception {
+    final IndexClient client = new IndexClient(getTestName());
+    final GeocodingServiceTests.CountingGeocodingService first =
+        new GeocodingServiceTests.CountingGeocodingService(Settings.EMPTY);
+    final GeocodingServiceTests.CountingGeocodingService second =
+        new GeocodingServiceTests.CountingGeocodingService(Settings.EMPTY);
+    final GeocodingIndexCache firstCache = new GeocodingIndexCache(Settings.EMPTY, client, client.threadPool());
+    first.setIndexCache(firstCache);
+    second.setIndexCache(new GeocodingIndexCache(Settings.EMPTY, client, client.threadPool()));
+    first.start();
+    second.start();
+
+    try {
+      assertThat(first.geocode(KNOWN_ADDRESS).getLatitude(), equalTo(1.0));
+      assertThat(first.geocode("unknown"), nullValue());
+      assertThat(firstCache.pendingCount(), is(1));
+      firstCache.flush();
+      assertThat(client.creates.get(), is(1));
+      assertThat(client.documents.size(), is(1));
+
+      final GeocodingOutput shared = second.geocode(KNOWN_ADDRESS);
+      assertThat(shared.getLatitude(), equalTo(1.0));
+      assertThat(shared.getLongitude(), equalTo(-1.0));
+      assertThat(second.lookups.get(), is(0));
+      assertThat(second.getStats().snapshot().get(GeocodingStats.Counter.SHARED_CACHE_HITS), is(1L));
+
+      // results are cached locally once read from the index
+      second.geocode(KNOWN_ADDRESS);
+      assertThat(second.getStats().snapshot().get(GeocodingStats.Counter.SHARED_CACHE_HITS), is(1L));
+    } finally {
+      first.stop();
+      first.close();
+      second.stop();
+      second.close();
+      client.close();
+    }
+  }
+
+  public void testWritesAreDroppedWhenQueueIsFull() throws Exception {
+    final IndexClient client = new IndexClient(getTestName());
+    final Settings settings = Settings.builder()
+        .put(SHARED_CACHE_QUEUE_SIZE.getKey(), 2)
+        .build();
+    final GeocodingIndexCache cache = new GeocodingIndexCache(settings, client, client.threadPool());
+
+    try {
+      for (int i = 0; i < 5; i++) {
+        cache.put(AddressFingerprint.of("address " + i), new GeocodingOutput(1.0, -1.0));
+      }
+      assertThat(cache.pendingCount(), is(2));
+      cache.flush();
+      assertThat(cache.pendingCount(), is(0));
+      assertThat(client.bulks.get(), is(1));
+      assertThat(client.documents.size(), is(2));
+      assertThat(cache.get(AddressFingerprint.of("address 9")), nullValue());
+    } finally {
+      cache.close();
+      client.close();
+    }
+  }
+
+}
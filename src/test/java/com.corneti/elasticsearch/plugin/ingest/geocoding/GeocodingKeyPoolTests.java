@@ -0,0 +1,184 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+
+import com.google.maps.errors.OverQueryLimitException;
+import com.google.maps.errors.RequestDeniedException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.API_KEY;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.API_KEYS;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.API_KEYS_COOLDOWN;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.API_KEYS_DAILY_LIMIT;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.API_KEYS_QPS;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.RATE_LIMIT_MAX_WAIT;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+public class GeocodingKeyPoolTests extends ESTestCase {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final long DAY = 17000;
+
+  private static Settings.Builder keys(String... names) {
+    final Settings.Builder settings = Settings.builder();
+    for (String name : names) {
+      settings.put(API_KEYS.getConcreteSettingForNamespace(name).getKey(), "AIza" + name);
+    }
+    return settings;
+  }
+
+  /**
+   * Selects a key and takes a permit from it, as {@link GeocodingKeyPool#acquire()} does.
+   */
+  private static GeocodingKeyPool.Key acquire(GeocodingKeyPool pool, long now, long day) {
+    final GeocodingKeyPool.Key key = pool.select(now, day);
+    if (key != null) {
+      pool.take(key, now);
+    }
+    return key;
+  }
+
+  public void testDefaultsToSingleKey() {
+    final GeocodingKeyPool pool = new GeocodingKeyPool(Settings.builder().put(API_KEY.getKey(), "AIzaMock").build());
+    assertThat(pool.size(), is(1));
+    final long now = System.nanoTime();
+    for (int i = 0; i < 10; i++) {
+      assertThat(acquire(pool, now, DAY).getValue(), equalTo("AIzaMock"));
+    }
+  }
+
+  public void testLeastLoadedKey() {
+    final GeocodingKeyPool pool = new GeocodingKeyPool(keys("a", "b", "c").build());
+    final long now = System.nanoTime();
+
+    final GeocodingKeyPool.Key first = acquire(pool, now, DAY);
+    final GeocodingKeyPool.Key second = acquire(pool, now, DAY);
+    final GeocodingKeyPool.Key third = acquire(pool, now, DAY);
+    assertThat(second, not(first));
+    assertThat(third, not(first));
+    assertThat(third, not(second));
+
+    // the key whose request completed is the only one without requests in flight
+    pool.release(second, null, now);
+    assertThat(acquire(pool, now, DAY), is(second));
+  }
+
+  public void testRateLimitPerKey() {
+    final Settings settings = keys("a", "b")
+        .put(API_KEYS_QPS.getConcreteSettingForNamespace("a").getKey(), 2)
+        .put(API_KEYS_QPS.getConcreteSettingForNamespace("b").getKey(), 1)
+        .put(RATE_LIMIT_MAX_WAIT.getKey(), "0s")
+        .build();
+    final GeocodingKeyPool pool = new GeocodingKeyPool(settings);
+    final long now = System.nanoTime() + SECOND;
+
+    // each key bursts up to a second worth of requests, so the pool serves the sum of their rates
+    int a = 0;
+    int b = 0;
+    GeocodingKeyPool.Key key;
+    while ((key = acquire(pool, now, DAY)) != null) {
+      pool.release(key, null, now);
+      if (key.getName().equals("a")) {
+        a++;
+      } else {
+        b++;
+      }
+    }
+    assertThat(a, is(2));
+    assertThat(b, is(1));
+    assertThat(acquire(pool, now + SECOND, DAY), not(nullValue()));
+  }
+
+  public void testRateLimitIsSplitBetweenIngestNodes() {
+    final Settings settings = keys("a")
+        .put(API_KEYS_QPS.getConcreteSettingForNamespace("a").getKey(), 4)
+        .put(RATE_LIMIT_MAX_WAIT.getKey(), "0s")
+        .build();
+    final GeocodingKeyPool pool = new GeocodingKeyPool(settings);
+    pool.setIngestNodes(2);
+    final long now = System.nanoTime() + SECOND;
+    assertThat(acquire(pool, now, DAY), not(nullValue()));
+    assertThat(acquire(pool, now, DAY), not(nullValue()));
+    assertThat(acquire(pool, now, DAY), nullValue());
+  }
+
+  public void testDailyLimit() {
+    final Settings settings = keys("a")
+        .put(API_KEYS_DAILY_LIMIT.getConcreteSettingForNamespace("a").getKey(), 3)
+        .build();
+    final GeocodingKeyPool pool = new GeocodingKeyPool(settings);
+    final long now = System.nanoTime();
+    for (int i = 0; i < 3; i++) {
+      assertThat(acquire(pool, now, DAY), not(nullValue()));
+    }
+    assertThat(acquire(pool, now, DAY), nullValue());
+    assertThat(acquire(pool, now, DAY + 1), not(nullValue()));
+  }
+
+  public void testCooldown() {
+    final Settings settings = keys("a", "b")
+        .put(API_KEYS_COOLDOWN.getKey(), "10s")
+        .build();
+    final GeocodingKeyPool pool = new GeocodingKeyPool(settings);
+    final long now = System.nanoTime();
+
+    final GeocodingKeyPool.Key rejected = acquire(pool, now, DAY);
+    pool.release(rejected, new OverQueryLimitException("Over quota (mock)."), now);
+    for (int i = 0; i < 5; i++) {
+      final GeocodingKeyPool.Key key = acquire(pool, now, DAY);
+      assertThat(key, not(rejected));
+      pool.release(key, null, now);
+    }
+
+    final GeocodingKeyPool.Key denied = acquire(pool, now, DAY);
+    pool.release(denied, new RequestDeniedException("Denied (mock)."), now);
+    assertThat(acquire(pool, now, DAY), nullValue());
+
+    assertThat(acquire(pool, now + 10 * SECOND, DAY), not(nullValue()));
+  }
+
+  public void testLastKeyOverQueryLimitIsNotCooledDown() {
+    final Settings settings = Settings.builder()
+        .put(API_KEY.getKey(), "AIzaMock")
+        .put(API_KEYS_COOLDOWN.getKey(), "10s")
+        .build();
+    final GeocodingKeyPool pool = new GeocodingKeyPool(settings);
+    final long now = System.nanoTime();
+
+    // short bursts over the query rate are retried with the same key
+    pool.release(acquire(pool, now, DAY), new OverQueryLimitException("Over quota (mock)."), now);
+    assertThat(acquire(pool, now, DAY), not(nullValue()));
+
+    final GeocodingKeyPool.Key denied = acquire(pool, now, DAY);
+    pool.release(denied, new RequestDeniedException("Denied (mock)."), now);
+    assertThat(acquire(pool, now, DAY), nullValue());
+  }
+
+  public void testEpochDayFollowsPacificTime() {
+    // 2018-01-01T07:59:59Z is still 2017-12-31 in California
+    assertThat(GeocodingKeyPool.epochDay(1514793599000L), is(17531L));
+    assertThat(GeocodingKeyPool.epochDay(1514793600000L), is(17532L));
+  }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.test.rest.ESRestTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Bulk indexes documents through a geocoding pipeline, against a cluster whose Geocoding API is the
+ * {@link StubGeocodingServer}, and reports the indexing throughput, the bulk and ingest latencies and the number of
+ * API calls per document. Run by the {@code loadTest} task, see the README.
+ */
+public class GeocodingLoadTestIT extends ESRestTestCase {
+
+  private static final String INDEX = "geocoding-load";
+  private static final String PIPELINE = "geocoding-load";
+
+  public void testLoad() throws Exception {
+    final int documents = Integer.getInteger("tests.load.documents", 20000);
+    final int bulkSize = Integer.getInteger("tests.load.bulk_size", 500);
+    final int clients = Integer.getInteger("tests.load.clients", 4);
+    final int distinctAddresses = Integer.getInteger("tests.load.distinct_addresses", 2000);
+
+    final Request pipeline = new Request("PUT", "/_ingest/pipeline/" + PIPELINE);
+    pipeline.setJsonEntity("{\"processors\":[{\"geocoding\":{\"field\":\"address\"}}]}");
+    client().performRequest(pipeline);
+    final Map<String, Object> before = geocodingStats();
+
+    final AtomicInteger next = new AtomicInteger();
+    final List<Long> bulkLatencies = new CopyOnWriteArrayList<>();
+    final List<Long> ingestLatencies = new CopyOnWriteArrayList<>();
+    final List<Exception> failures = new CopyOnWriteArrayList<>();
+    final List<Thread> threads = new ArrayList<>();
+    final long start = System.nanoTime();
+    for (int i = 0; i < clients; i++) {
+      final Thread thread = new Thread(() -> {
+        int from;
+        while ((from = next.getAndAdd(bulkSize)) < documents) {
+          try {
+            bulk(from, Math.min(from + bulkSize, documents), distinctAddresses, bulkLatencies, ingestLatencies);
+          } catch (Exception e) {
+            failures.add(e);
+            return;
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    final long elapsedNanos = System.nanoTime() - start;
+    if (!failures.isEmpty()) {
+      throw failures.get(0);
+    }
+
+    final Map<String, Object> after = geocodingStats();
+    final long apiCalls = ((Number) XContentMapValues.extractValue("api.calls", after)).longValue()
+        - ((Number) XContentMapValues.extractValue("api.calls", before)).longValue();
+    final long documentErrors = ((Number) XContentMapValues.extractValue("processor.errors", after)).longValue()
+        - ((Number) XContentMapValues.extractValue("processor.errors", before)).longValue();
+    logger.info(String.format(Locale.ROOT, "Indexed %d documents (%d distinct addresses) with %d clients in bulks of "
+            + "%d: %.1f docs/s, bulk latency p50 %d ms p99 %d ms, ingest latency p50 %d ms p99 %d ms, "
+            + "%.3f API calls per document, %d documents with geocoding errors",
+        documents, distinctAddresses, clients, bulkSize, documents * 1e9 / elapsedNanos,
+        percentile(bulkLatencies, 50), percentile(bulkLatencies, 99), percentile(ingestLatencies, 50),
+        percentile(ingestLatencies, 99), (double) apiCalls / documents, documentErrors));
+
+    client().performRequest(new Request("POST", "/" + INDEX + "/_refresh"));
+    final Map<String, Object> count = entityAsMap(client().performRequest(new Request("GET", "/" + INDEX + "/_count")));
+    assertThat(((Number) count.get("count")).intValue(), is(documents));
+  }
+
+  private void bulk(int from, int to, int distinctAddresses, List<Long> bulkLatencies,
+                    List<Long> ingestLatencies) throws Exception {
+    final StringBuilder body = new StringBuilder();
+    for (int i = from; i < to; i++) {
+      // spreads the repetitions of each address over the whole run
+      final long address = (i * 7919L) % distinctAddresses;
+      body.append("{\"index\":{}}\n{\"address\":\"").append(address).append(" Main Street, Springfield\"}\n");
+    }
+    final Request request = new Request("POST", "/" + INDEX + "/_doc/_bulk");
+    request.addParameter("pipeline", PIPELINE);
+    request.setJsonEntity(body.toString());
+
+    final long start = System.nanoTime();
+    final Response response = client().performRequest(request);
+    bulkLatencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    final Map<String, Object> result = entityAsMap(response);
+    assertThat("bulk request failed: " + result, result.get("errors"), is(false));
+    final Object ingestTook = result.get("ingest_took");
+    if (ingestTook instanceof Number) {
+      ingestLatencies.add(((Number) ingestTook).longValue());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> geocodingStats() throws Exception {
+    final Response response = client().performRequest(new Request("GET", "/_nodes/geocoding/stats"));
+    final Map<String, Object> stats = entityAsMap(response);
+    return (Map<String, Object>) stats.get("total");
+  }
+
+  private static long percentile(List<Long> values, int percentile) {
+    if (values.isEmpty()) {
+      return 0;
+    }
+    final List<Long> sorted = new ArrayList<>(values);
+    Collections.sort(sorted);
+    return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1));
+  }
+
+}
@@ -17,19 +17,31 @@
 
 package com.corneti.elasticsearch.plugin.ingest.geocoding;
 
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.geo.GeoHashUtils;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.RandomDocumentPicks;
 import org.elasticsearch.test.ESTestCase;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 
 import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.API_KEY;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.CACHE_MAX_ENTRIES;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 
 public class GeocodingProcessorTests extends ESTestCase {
 
@@ -47,7 +59,7 @@ public class GeocodingProcessorTests extends ESTestCase {
     }
 
     @Override
-    GeocodingOutput geocode(String address) {
+    GeocodingOutput lookup(String address) {
       if (API_KEY.get(super.settings).equals(MOCK_KEY)) {
         if (address.equals(KNOWN_ADDRESS)) {
           return new GeocodingOutput(1.0, -1.0);
@@ -59,6 +71,20 @@ public class GeocodingProcessorTests extends ESTestCase {
 
   }
 
+  /**
+   * @return A processor geocoding the {@code address} field to the {@code loc} field, created by the factory with the
+   *     specified options, given as name and value pairs.
+   */
+  static GeocodingProcessor processor(GeocodingService service, Object... options) {
+    final Map<String, Object> config = new HashMap<>();
+    config.put("field", "address");
+    config.put("target_field", "loc");
+    for (int i = 0; i < options.length; i += 2) {
+      config.put((String) options[i], options[i + 1]);
+    }
+    return new GeocodingProcessor.Factory(service).create(null, "geocoding", config);
+  }
+
   @SuppressWarnings("unchecked")
   public void testKnownAddressWithMissingAPIKey() throws Exception {
     final Map<String, Object> document = new HashMap<>();
@@ -237,6 +263,238 @@ public class GeocodingProcessorTests extends ESTestCase {
     }
   }
 
+  @SuppressWarnings("unchecked")
+  public void testTimeout() throws Exception {
+    final Map<String, Object> document = new HashMap<>();
+    document.put("address", KNOWN_ADDRESS);
+
+    final IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+
+    final CountDownLatch release = new CountDownLatch(1);
+    final GeocodingService service = new GeocodingService(Settings.EMPTY) {
+      @Override
+      GeocodingOutput lookup(String address) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return new GeocodingOutput(1.0, -1.0);
+      }
+    };
+    final ExecutorService executor = EsExecutors.newFixed("geocoding", 1, 10,
+        EsExecutors.daemonThreadFactory("geocoding"), new ThreadContext(Settings.EMPTY));
+    service.setExecutor(executor);
+    service.start();
+
+    try {
+      final GeocodingProcessor processor = processor(service, "timeout", "10ms");
+      processor.execute(ingestDocument);
+
+      assertThat(ingestDocument.hasField("loc.coordinates"), is(false));
+      final List<String> errors = ingestDocument.getFieldValue("loc._errors", List.class);
+      assertThat(errors.size(), is(1));
+      assertThat(errors.get(0), equalTo("Geocoding timed out after [10ms]."));
+    } finally {
+      release.countDown();
+      service.stop();
+      service.close();
+      terminate(executor);
+    }
+  }
+
+  public void testSkipUnchanged() throws Exception {
+    final Map<String, Object> document = new HashMap<>();
+    document.put("address", KNOWN_ADDRESS);
+
+    final IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+
+    final Settings settings = Settings.builder()
+        .put(CACHE_MAX_ENTRIES.getKey(), 0)
+        .build();
+    final GeocodingServiceTests.CountingGeocodingService service =
+        new GeocodingServiceTests.CountingGeocodingService(settings);
+    service.start();
+
+    try {
+      final GeocodingProcessor processor = processor(service, "skip_unchanged", true);
+      processor.execute(ingestDocument);
+      assertThat(service.lookups.get(), is(1));
+      assertThat(ingestDocument.getFieldValue("loc.address_hash", String.class),
+          equalTo(AddressFingerprint.of(KNOWN_ADDRESS).toString()));
+
+      // reprocessing the document, for example when reindexing, does not geocode it again
+      processor.execute(ingestDocument);
+      assertThat(service.lookups.get(), is(1));
+      assertThat(service.getStats().snapshot().get(GeocodingStats.Counter.SKIPPED_UNCHANGED), is(1L));
+
+      ingestDocument.setFieldValue("address", "unknown");
+      processor.execute(ingestDocument);
+      assertThat(service.lookups.get(), is(2));
+    } finally {
+      service.stop();
+      service.close();
+    }
+  }
+
+  public void testGeohashes() throws Exception {
+    final Settings settings = Settings.builder()
+        .put(API_KEY.getKey(), MOCK_KEY)
+        .build();
+    final GeocodingService service = new GeocodingServiceMock(settings);
+    service.start();
+
+    try {
+      final Map<String, Object> config = new HashMap<>();
+      config.put("field", "address");
+      config.put("target_field", "loc");
+      config.put("geohash_precisions", Arrays.asList(3, 7));
+      final GeocodingProcessor processor = new GeocodingProcessor.Factory(service).create(null, "geocoding", config);
+      final IngestDocument first = RandomDocumentPicks.randomIngestDocument(random(),
+          Collections.singletonMap("address", KNOWN_ADDRESS));
+      processor.execute(first);
+      assertThat(first.getFieldValue("loc.geohash_3", String.class), equalTo("ebp"));
+      assertThat(first.getFieldValue("loc.geohash_7", String.class), equalTo("ebpm9np"));
+
+      // cached outputs share their geohashes
+      final IngestDocument second = RandomDocumentPicks.randomIngestDocument(random(),
+          Collections.singletonMap("address", KNOWN_ADDRESS));
+      processor.execute(second);
+      assertThat(second.getFieldValue("loc.geohash_7", String.class),
+          sameInstance(first.getFieldValue("loc.geohash_7", String.class)));
+
+      config.put("field", "address");
+      config.put("target_field", "loc");
+      config.put("geohash_precisions", Collections.singletonList(7));
+      config.put("geohash_format", "long");
+      final IngestDocument cells = RandomDocumentPicks.randomIngestDocument(random(),
+          Collections.singletonMap("address", KNOWN_ADDRESS));
+      new GeocodingProcessor.Factory(service).create(null, "geocoding", config).execute(cells);
+      final long cell = cells.getFieldValue("loc.geohash_7", Long.class);
+      assertThat(GeoHashUtils.stringEncode(cell), equalTo("ebpm9np"));
+    } finally {
+      service.stop();
+      service.close();
+    }
+  }
+
+  public void testInvalidGeohashPrecision() {
+    final Map<String, Object> config = new HashMap<>();
+    config.put("field", "address");
+    config.put("geohash_precisions", Collections.singletonList(13));
+    final ElasticsearchParseException e = expectThrows(ElasticsearchParseException.class,
+        () -> new GeocodingProcessor.Factory(null).create(null, "geocoding", config));
+    assertThat(e.getMessage(), equalTo("[geohash_precisions] precisions must be between [1] and [12], got [13]"));
+  }
+
+  public void testOverloadPolicies() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final GeocodingServiceTests.CountingGeocodingService service =
+        new GeocodingServiceTests.CountingGeocodingService(Settings.EMPTY, release);
+    final ExecutorService executor = EsExecutors.newFixed("geocoding", 1, 1,
+        EsExecutors.daemonThreadFactory("geocoding"), new ThreadContext(Settings.EMPTY));
+    service.setExecutor(executor);
+    final GeocodingStore store = new GeocodingStore(Settings.EMPTY, createTempDir(), null);
+    store.put(AddressFingerprint.of(KNOWN_ADDRESS), new GeocodingOutput(1.0, -1.0));
+    service.setStore(store);
+    service.start();
+
+    try {
+      // one lookup runs and one waits in the queue, so further lookups are rejected
+      service.geocodeAsync("first");
+      service.geocodeAsync("second");
+      assertBusy(() -> assertThat(service.lookups.get(), is(1)));
+
+      final IngestDocument skipped = RandomDocumentPicks.randomIngestDocument(random(),
+          Collections.singletonMap("address", KNOWN_ADDRESS));
+      processor(service, "overload_policy", "skip").execute(skipped);
+      assertThat(skipped.hasField("loc.coordinates"), is(false));
+      assertThat(skipped.getFieldValue("loc._errors", List.class).get(0),
+          equalTo("Geocoding skipped, too many lookups are outstanding."));
+
+      final IngestDocument stale = RandomDocumentPicks.randomIngestDocument(random(),
+          Collections.singletonMap("address", KNOWN_ADDRESS));
+      processor(service, "overload_policy", "stale").execute(stale);
+      assertThat(stale.getFieldValue("loc.coordinates.lat", Double.class), equalTo(1.0));
+      assertThat(stale.hasField("loc._errors"), is(false));
+
+      final IngestDocument failed = RandomDocumentPicks.randomIngestDocument(random(),
+          Collections.singletonMap("address", KNOWN_ADDRESS));
+      expectThrows(EsRejectedExecutionException.class,
+          () -> processor(service, "overload_policy", "fail").execute(failed));
+
+      final GeocodingStats.Snapshot stats = service.getStats().snapshot();
+      assertThat(stats.get(GeocodingStats.Counter.SHED), is(3L));
+      assertThat(stats.get(GeocodingStats.Counter.SERVED_STALE), is(1L));
+      assertThat(stats.get(GeocodingStats.Counter.LOOKUPS_REJECTED), is(3L));
+      assertThat(stats.get(GeocodingStats.Counter.LOOKUPS_RUNNING), is(1L));
+      assertThat(stats.get(GeocodingStats.Counter.LOOKUPS_QUEUED), is(1L));
+    } finally {
+      release.countDown();
+      service.stop();
+      service.close();
+      terminate(executor);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testAddressList() throws Exception {
+    final Map<String, Object> document = new HashMap<>();
+    document.put("address", Arrays.asList(KNOWN_ADDRESS, "unknown", null, "error",
+        KNOWN_ADDRESS.toLowerCase(Locale.ROOT), "Unknown"));
+    final IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+
+    final CountDownLatch release = new CountDownLatch(1);
+    final GeocodingServiceTests.CountingGeocodingService service =
+        new GeocodingServiceTests.CountingGeocodingService(Settings.EMPTY, release);
+    final ExecutorService executor = EsExecutors.newFixed("geocoding", 4, 10,
+        EsExecutors.daemonThreadFactory("geocoding"), new ThreadContext(Settings.EMPTY));
+    service.setExecutor(executor);
+    service.start();
+
+    try {
+      final GeocodingProcessor processor = processor(service, "geohash_precisions", Collections.singletonList(3));
+      final Thread thread = new Thread(() -> processor.execute(ingestDocument));
+      thread.start();
+      // the distinct addresses are looked up concurrently
+      assertBusy(() -> assertThat(service.lookups.get(), is(3)));
+      release.countDown();
+      thread.join();
+
+      final List<Map<String, Object>> coordinates = ingestDocument.getFieldValue("loc.coordinates", List.class);
+      assertThat(coordinates.size(), is(1));
+      assertThat(coordinates.get(0).get("lat"), equalTo(1.0));
+      assertThat(ingestDocument.getFieldValue("loc.geohash_3", List.class), equalTo(Collections.singletonList("ebp")));
+      assertThat(ingestDocument.getFieldValue("loc._errors", List.class),
+          equalTo(Collections.singletonList("Backend error (mock).")));
+      assertThat(service.lookups.get(), is(3));
+    } finally {
+      release.countDown();
+      service.stop();
+      service.close();
+      terminate(executor);
+    }
+  }
+
+  public void testAddressListWithInvalidValue() throws Exception {
+    final Map<String, Object> document = new HashMap<>();
+    document.put("address", Arrays.asList(KNOWN_ADDRESS, 42));
+    final IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+
+    final GeocodingService service = new GeocodingServiceMock(Settings.EMPTY);
+    service.start();
+
+    try {
+      new GeocodingProcessor(service, "geocoding", "address", "loc").execute(ingestDocument);
+      assertThat(ingestDocument.hasField("loc.coordinates"), is(false));
+      assertThat(ingestDocument.getFieldValue("loc._errors", List.class).get(0),
+          equalTo("field [address] of type [java.lang.Integer] cannot be cast to [java.lang.String]"));
+    } finally {
+      service.stop();
+      service.close();
+    }
+  }
+
   public void testUnknownAddressUsingMockWithCorrectApiKey() throws Exception {
     final Map<String, Object> document = new HashMap<>();
     document.put("address", "unknown");
@@ -0,0 +1,93 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.RATE_LIMIT_BURST;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.RATE_LIMIT_CLUSTER_QPS;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.RATE_LIMIT_MAX_WAIT;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class GeocodingRateLimiterTests extends ESTestCase {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  public void testBurstThenSteadyRate() {
+    final Settings settings = Settings.builder()
+        .put(RATE_LIMIT_CLUSTER_QPS.getKey(), 10)
+        .put(RATE_LIMIT_BURST.getKey(), 5)
+        .put(RATE_LIMIT_MAX_WAIT.getKey(), "1s")
+        .build();
+    final GeocodingRateLimiter limiter = new GeocodingRateLimiter(settings);
+    final long now = System.nanoTime() + SECOND;
+
+    for (int i = 0; i < 5; i++) {
+      assertThat(limiter.reserve(now), is(0L));
+    }
+    // further requests are queued a tenth of a second apart, up to the maximum wait
+    for (int i = 1; i <= 10; i++) {
+      assertThat(limiter.reserve(now), equalTo(i * SECOND / 10));
+    }
+    assertThat(limiter.reserve(now), is(-1L));
+    assertThat(limiter.reserve(now + 2 * SECOND), is(0L));
+  }
+
+  public void testRateIsSplitBetweenIngestNodes() {
+    final Settings settings = Settings.builder()
+        .put(RATE_LIMIT_CLUSTER_QPS.getKey(), 30)
+        .build();
+    final GeocodingRateLimiter limiter = new GeocodingRateLimiter(settings);
+    assertThat(limiter.getNodeQps(), equalTo(30.0));
+
+    limiter.setIngestNodes(3);
+    assertThat(limiter.getNodeQps(), equalTo(10.0));
+
+    limiter.setClusterQps(60);
+    assertThat(limiter.getNodeQps(), equalTo(20.0));
+
+    limiter.setIngestNodes(0);
+    assertThat(limiter.getNodeQps(), equalTo(60.0));
+  }
+
+  public void testFailFast() {
+    final Settings settings = Settings.builder()
+        .put(RATE_LIMIT_CLUSTER_QPS.getKey(), 1)
+        .put(RATE_LIMIT_BURST.getKey(), 1)
+        .put(RATE_LIMIT_MAX_WAIT.getKey(), "0s")
+        .build();
+    final GeocodingRateLimiter limiter = new GeocodingRateLimiter(settings);
+    assertThat(limiter.acquire(), is(true));
+    assertThat(limiter.acquire(), is(false));
+  }
+
+  public void testUnlimited() {
+    final Settings settings = Settings.builder()
+        .put(RATE_LIMIT_CLUSTER_QPS.getKey(), 0)
+        .put(RATE_LIMIT_MAX_WAIT.getKey(), "0s")
+        .build();
+    final GeocodingRateLimiter limiter = new GeocodingRateLimiter(settings);
+    for (int i = 0; i < 1000; i++) {
+      assertThat(limiter.acquire(), is(true));
+    }
+  }
+
+}
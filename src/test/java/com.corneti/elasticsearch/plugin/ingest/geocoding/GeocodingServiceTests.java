@@ -0,0 +1,335 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.GeocodingProcessorTests.KNOWN_ADDRESS;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.CACHE_MAX_ENTRIES;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.ERROR_CACHE_MAX_ENTRIES;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.NEGATIVE_CACHE_MAX_ENTRIES;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.NEGATIVE_CACHE_TTL;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
+
+public class GeocodingServiceTests extends ESTestCase {
+
+  /**
+   * This mock counts the calls to the Geocoding API and returns a match only for the known address.
+   */
+  static final class CountingGeocodingService extends GeocodingService {
+
+    final AtomicInteger lookups = new AtomicInteger();
+    final CountDownLatch release;
+
+    CountingGeocodingService(Settings settings) {
+      this(settings, new CountDownLatch(0));
+    }
+
+    CountingGeocodingService(Settings settings, CountDownLatch release) {
+      super(settings);
+      this.release = release;
+    }
+
+    @Override
+    GeocodingOutput lookup(String address) {
+      lookups.incrementAndGet();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (address.equals(KNOWN_ADDRESS)) {
+        return new GeocodingOutput(1.0, -1.0);
+      }
+      if (address.equals("error")) {
+        return new GeocodingOutput(new Exception("Backend error (mock)."));
+      }
+      if (address.equals("invalid")) {
+        return new GeocodingOutput(new Exception("Invalid request (mock)."), true);
+      }
+      return null;
+    }
+
+  }
+
+  public void testCachedMatch() throws Exception {
+    final CountingGeocodingService service = new CountingGeocodingService(Settings.EMPTY);
+    service.start();
+
+    try {
+      final GeocodingOutput first = service.geocode(KNOWN_ADDRESS);
+      final GeocodingOutput second = service.geocode(KNOWN_ADDRESS);
+      assertThat(first.getLatitude(), equalTo(1.0));
+      assertThat(second, sameInstance(first));
+      assertThat(service.lookups.get(), is(1));
+    } finally {
+      service.stop();
+      service.close();
+    }
+  }
+
+  public void testVariantsShareCachedMatch() throws Exception {
+    final CountingGeocodingService service = new CountingGeocodingService(Settings.EMPTY);
+    service.start();
+
+    try {
+      final GeocodingOutput first = service.geocode(KNOWN_ADDRESS);
+      assertThat(service.geocode("  " + KNOWN_ADDRESS.toLowerCase(Locale.ROOT) + ","), sameInstance(first));
+      assertThat(service.lookups.get(), is(1));
+    } finally {
+      service.stop();
+      service.close();
+    }
+  }
+
+  public void testErrorsAndMissesAreNotCached() throws Exception {
+    final Settings settings = Settings.builder()
+        .put(NEGATIVE_CACHE_MAX_ENTRIES.getKey(), 0)
+        .put(ERROR_CACHE_MAX_ENTRIES.getKey(), 0)
+        .build();
+    final CountingGeocodingService service = new CountingGeocodingService(settings);
+    service.start();
+
+    try {
+      assertThat(service.geocode("unknown"), nullValue());
+      assertThat(service.geocode("unknown"), nullValue());
+      assertThat(service.geocode("error").getErrors().size(), is(1));
+      assertThat(service.geocode("error").getErrors().size(), is(1));
+      assertThat(service.geocode("invalid").getErrors().size(), is(1));
+      assertThat(service.geocode("invalid").getErrors().size(), is(1));
+      assertThat(service.lookups.get(), is(6));
+    } finally {
+      service.stop();
+      service.close();
+    }
+  }
+
+  public void testMissesAndDeterministicErrorsAreCached() throws Exception {
+    final CountingGeocodingService service = new CountingGeocodingService(Settings.EMPTY);
+    service.start();
+
+    try {
+      assertThat(service.geocode("unknown"), nullValue());
+      assertThat(service.geocodeAsync("unknown").get(), nullValue());
+      final GeocodingOutput invalid = service.geocode("invalid");
+      assertThat(service.geocodeAsync("invalid").get(), sameInstance(invalid));
+      assertThat(service.lookups.get(), is(2));
+
+      // transient errors are always retried
+      service.geocode("error");
+      service.geocode("error");
+      assertThat(service.lookups.get(), is(4));
+
+      final GeocodingStats.Snapshot stats = service.getStats().snapshot();
+      assertThat(stats.get(GeocodingStats.Counter.NEGATIVE_CACHE_HITS), is(1L));
+      assertThat(stats.get(GeocodingStats.Counter.ERROR_CACHE_HITS), is(1L));
+    } finally {
+      service.stop();
+      service.close();
+    }
+  }
+
+  public void testNegativeCacheExpires() throws Exception {
+    final Settings settings = Settings.builder()
+        .put(NEGATIVE_CACHE_TTL.getKey(), "1ms")
+        .build();
+    final CountingGeocodingService service = new CountingGeocodingService(settings);
+    service.start();
+
+    try {
+      service.geocode("unknown");
+      assertBusy(() -> {
+        service.geocode("unknown");
+        assertThat(service.lookups.get(), is(2));
+      });
+    } finally {
+      service.stop();
+      service.close();
+    }
+  }
+
+  public void testConcurrentLookupsAreCoalesced() throws Exception {
+    assertCoalesced(KNOWN_ADDRESS);
+  }
+
+  public void testConcurrentFailuresAreShared() throws Exception {
+    final List<GeocodingOutput> outputs = assertCoalesced("error");
+    assertThat(outputs.get(0).getErrors().size(), is(1));
+  }
+
+  /**
+   * Geocodes the same address from several threads while the lookup is blocked, then checks that a single lookup
+   * was performed and its output was shared by all the callers.
+   */
+  private List<GeocodingOutput> assertCoalesced(String address) throws Exception {
+    final Settings settings = Settings.builder()
+        .put(CACHE_MAX_ENTRIES.getKey(), 0)
+        .build();
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountingGeocodingService service = new CountingGeocodingService(settings, release);
+    service.start();
+
+    try {
+      final int callers = randomIntBetween(2, 8);
+      final List<GeocodingOutput> outputs = new CopyOnWriteArrayList<>();
+      final List<Thread> threads = new ArrayList<>();
+      for (int i = 0; i < callers; i++) {
+        final Thread thread = new Thread(() -> outputs.add(service.geocode(address)));
+        threads.add(thread);
+        thread.start();
+      }
+      assertBusy(() -> {
+        for (Thread thread : threads) {
+          assertThat(thread.getState(), is(Thread.State.WAITING));
+        }
+      });
+      release.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+
+      assertThat(service.lookups.get(), is(1));
+      assertThat(outputs.size(), is(callers));
+      for (GeocodingOutput output : outputs) {
+        assertThat(output, sameInstance(outputs.get(0)));
+      }
+      return outputs;
+    } finally {
+      service.stop();
+      service.close();
+    }
+  }
+
+  public void testAsyncLookupRunsOnExecutor() throws Exception {
+    final AtomicReference<String> threadName = new AtomicReference<>();
+    final GeocodingService service = new GeocodingService(Settings.EMPTY) {
+      @Override
+      GeocodingOutput lookup(String address) {
+        threadName.set(Thread.currentThread().getName());
+        return new GeocodingOutput(1.0, -1.0);
+      }
+    };
+    final ExecutorService executor = EsExecutors.newFixed("geocoding", 1, 10,
+        EsExecutors.daemonThreadFactory("geocoding"), new ThreadContext(Settings.EMPTY));
+    service.setExecutor(executor);
+    service.start();
+
+    try {
+      final GeocodingOutput output = service.geocodeAsync(KNOWN_ADDRESS).get();
+      assertThat(output.getLatitude(), equalTo(1.0));
+      assertThat(threadName.get(), startsWith("geocoding"));
+      assertThat(service.geocodeAsync(KNOWN_ADDRESS).isDone(), is(true));
+    } finally {
+      service.stop();
+      service.close();
+      terminate(executor);
+    }
+  }
+
+  public void testBulkLookupsAreBounded() throws Exception {
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final GeocodingService service = new GeocodingService(Settings.EMPTY) {
+      @Override
+      GeocodingOutput lookup(String address) {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        running.decrementAndGet();
+        if (address.equals("unknown")) {
+          return null;
+        }
+        final double index = Double.parseDouble(address);
+        return new GeocodingOutput(index, -index);
+      }
+    };
+    final ExecutorService executor = EsExecutors.newFixed("geocoding", 8, 1000,
+        EsExecutors.daemonThreadFactory("geocoding"), new ThreadContext(Settings.EMPTY));
+    service.setExecutor(executor);
+    service.start();
+
+    try {
+      final List<Map.Entry<AddressFingerprint, String>> addresses = new ArrayList<>();
+      final int size = randomIntBetween(20, 100);
+      for (int i = 0; i < size; i++) {
+        final String address = Integer.toString(i);
+        addresses.add(new AbstractMap.SimpleEntry<>(AddressFingerprint.of(address), address));
+      }
+      addresses.add(new AbstractMap.SimpleEntry<>(AddressFingerprint.of("unknown"), "unknown"));
+      // cached addresses are served without waiting for a lookup
+      service.geocode("0");
+
+      final int concurrency = randomIntBetween(1, 4);
+      final GeocodingOutput[] outputs = service.geocodeBulk(addresses, concurrency).get();
+      assertThat(maxRunning.get(), lessThanOrEqualTo(concurrency));
+      assertThat(outputs.length, is(size + 1));
+      for (int i = 0; i < size; i++) {
+        assertThat(outputs[i].getLatitude(), equalTo((double) i));
+      }
+      assertThat(outputs[size], nullValue());
+
+      // the outputs were cached
+      assertThat(service.getCached(AddressFingerprint.of(Integer.toString(size - 1))).getLatitude(),
+          equalTo((double) size - 1));
+    } finally {
+      service.stop();
+      service.close();
+      terminate(executor);
+    }
+  }
+
+  public void testDisabledCache() throws Exception {
+    final Settings settings = Settings.builder()
+        .put(CACHE_MAX_ENTRIES.getKey(), 0)
+        .build();
+    final CountingGeocodingService service = new CountingGeocodingService(settings);
+    service.start();
+
+    try {
+      service.geocode(KNOWN_ADDRESS);
+      service.geocode(KNOWN_ADDRESS);
+      assertThat(service.lookups.get(), is(2));
+    } finally {
+      service.stop();
+      service.close();
+    }
+  }
+
+}
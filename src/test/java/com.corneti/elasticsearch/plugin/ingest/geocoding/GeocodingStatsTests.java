@@ -0,0 +1,102 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.GeocodingProcessorTests.KNOWN_ADDRESS;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class GeocodingStatsTests extends ESTestCase {
+
+  public void testCountersAndSerialization() throws Exception {
+    final GeocodingStats stats = new GeocodingStats();
+    stats.increment(GeocodingStats.Counter.CACHE_HITS);
+    stats.increment(GeocodingStats.Counter.CACHE_HITS);
+    stats.add(GeocodingStats.Counter.RATE_LIMIT_WAIT_NANOS, TimeUnit.MILLISECONDS.toNanos(5));
+    stats.record(GeocodingStats.Timer.API, TimeUnit.MILLISECONDS.toNanos(3));
+
+    final GeocodingStats.Snapshot snapshot = stats.snapshot();
+    assertThat(snapshot.get(GeocodingStats.Counter.CACHE_HITS), is(2L));
+
+    final BytesStreamOutput out = new BytesStreamOutput();
+    snapshot.writeTo(out);
+    final GeocodingStats.Snapshot read = new GeocodingStats.Snapshot(out.bytes().streamInput());
+    final GeocodingStats.Snapshot total = read.add(snapshot);
+    assertThat(total.get(GeocodingStats.Counter.CACHE_HITS), is(4L));
+
+    final XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+    total.toXContent(builder, ToXContent.EMPTY_PARAMS);
+    final String json = Strings.toString(builder.endObject());
+    assertThat(json, containsString("\"cache\":{\"hits\":4,"));
+    assertThat(json, containsString("\"wait_time_in_millis\":10}"));
+    assertThat(json, containsString("\"histogram_in_micros\":{\"4096\":2}"));
+  }
+
+  public void testGaugesReadBeforeTheirIncrement() throws Exception {
+    final GeocodingStats stats = new GeocodingStats();
+    // a sum may include the decrement of a gauge but not its matching increment
+    stats.add(GeocodingStats.Counter.LOOKUPS_QUEUED, -1);
+
+    final GeocodingStats.Snapshot snapshot = stats.snapshot();
+    assertThat(snapshot.get(GeocodingStats.Counter.LOOKUPS_QUEUED), is(0L));
+    final BytesStreamOutput out = new BytesStreamOutput();
+    snapshot.writeTo(out);
+    final GeocodingStats.Snapshot read = new GeocodingStats.Snapshot(out.bytes().streamInput());
+    assertThat(read.get(GeocodingStats.Counter.LOOKUPS_QUEUED), is(0L));
+  }
+
+  public void testPercentiles() {
+    final long[] histogram = new long[33];
+    histogram[3] = 90;
+    histogram[10] = 9;
+    histogram[20] = 1;
+    assertThat(GeocodingStats.Snapshot.percentile(histogram, 100, 50), equalTo(8L));
+    assertThat(GeocodingStats.Snapshot.percentile(histogram, 100, 95), equalTo(1024L));
+    assertThat(GeocodingStats.Snapshot.percentile(histogram, 100, 99), equalTo(1024L));
+    assertThat(GeocodingStats.Snapshot.percentile(new long[33], 0, 99), equalTo(0L));
+  }
+
+  public void testServiceRecordsCacheActivity() throws Exception {
+    final GeocodingServiceTests.CountingGeocodingService service =
+        new GeocodingServiceTests.CountingGeocodingService(Settings.EMPTY);
+    service.start();
+
+    try {
+      service.geocode(KNOWN_ADDRESS);
+      service.geocode(KNOWN_ADDRESS);
+      service.geocodeAsync(KNOWN_ADDRESS).get();
+      final GeocodingStats.Snapshot snapshot = service.getStats().snapshot();
+      assertThat(snapshot.get(GeocodingStats.Counter.CACHE_MISSES), is(1L));
+      assertThat(snapshot.get(GeocodingStats.Counter.CACHE_HITS), is(2L));
+    } finally {
+      service.stop();
+      service.close();
+    }
+  }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.nio.file.Path;
+
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.STORE_MAX_ENTRIES;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class GeocodingStoreTests extends ESTestCase {
+
+  private static AddressFingerprint key(String address) {
+    return AddressFingerprint.of(address);
+  }
+
+  public void testPutAndGet() throws Exception {
+    try (GeocodingStore store = new GeocodingStore(Settings.EMPTY, createTempDir(), null)) {
+      assertThat(store.get(key("somewhere")), nullValue());
+
+      store.put(key("somewhere"), new GeocodingOutput(1.0, -1.0));
+      store.put(key("error"), new GeocodingOutput(new Exception("error")));
+      store.put(key("nowhere"), null);
+
+      final GeocodingOutput output = store.get(key("somewhere"));
+      assertThat(output.getLatitude(), equalTo(1.0));
+      assertThat(output.getLongitude(), equalTo(-1.0));
+      assertThat(store.get(key("error")), nullValue());
+      assertThat(store.count(), is(1));
+    }
+  }
+
+  public void testSurvivesReopen() throws Exception {
+    final Path directory = createTempDir();
+    try (GeocodingStore store = new GeocodingStore(Settings.EMPTY, directory, null)) {
+      store.put(key("somewhere"), new GeocodingOutput(1.0, -1.0));
+    }
+    try (GeocodingStore store = new GeocodingStore(Settings.EMPTY, directory, null)) {
+      assertThat(store.count(), is(1));
+      assertThat(store.get(key("somewhere")).getLatitude(), equalTo(1.0));
+    }
+  }
+
+  public void testCompactionGrowsAndEvicts() throws Exception {
+    final int maxEntries = 5000;
+    final Settings settings = Settings.builder()
+        .put(STORE_MAX_ENTRIES.getKey(), maxEntries)
+        .build();
+    final Path directory = createTempDir();
+    try (GeocodingStore store = new GeocodingStore(settings, directory, null)) {
+      final int entries = maxEntries * 2;
+      for (int i = 0; i < entries; i++) {
+        store.put(key("address " + i), new GeocodingOutput((double) i, (double) -i));
+        if (i % 1000 == 0) {
+          store.compact();
+        }
+      }
+      store.compact();
+      assertThat(store.count(), lessThanOrEqualTo(maxEntries));
+      assertThat(store.get(key("address " + (entries - 1))).getLatitude(), equalTo((double) entries - 1));
+    }
+    try (GeocodingStore store = new GeocodingStore(settings, directory, null)) {
+      assertThat(store.count(), lessThanOrEqualTo(maxEntries));
+    }
+  }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import com.carrotsearch.randomizedtesting.ThreadFilter;
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import com.google.maps.errors.OverQueryLimitException;
+import com.google.maps.errors.RequestDeniedException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.API_KEY;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.API_KEYS;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.HTTP_BASE_URL;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.HTTP_COMPRESSION;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+
+@SuppressForbidden(reason = "uses a HttpServer to emulate the Geocoding API")
+@ThreadLeakFilters(filters = GoogleGeocodingProviderTests.OkHttpThreadFilter.class)
+public class GoogleGeocodingProviderTests extends ESTestCase {
+
+  /**
+   * OkHttp's connection pool cleaner and Okio's timeout watchdog are daemon threads which linger after the client is
+   * closed.
+   */
+  public static final class OkHttpThreadFilter implements ThreadFilter {
+
+    @Override
+    public boolean reject(Thread t) {
+      return t.getName().startsWith("OkHttp ") || t.getName().equals("Okio Watchdog");
+    }
+
+  }
+
+  private static final String MATCH = "{\"results\":[{"
+      + "\"address_components\":[{\"long_name\":\"1600\",\"short_name\":\"1600\",\"types\":[\"street_number\"]}],"
+      + "\"formatted_address\":\"1600 Amphitheatre Pkwy, Mountain View, CA 94043, USA\","
+      + "\"geometry\":{\"bounds\":{\"northeast\":{\"lat\":2.0,\"lng\":-2.0},\"southwest\":{\"lat\":0.0,\"lng\":0.0}},"
+      + "\"location\":{\"lat\":1.0,\"lng\":-1.0},\"location_type\":\"ROOFTOP\"},"
+      + "\"place_id\":\"ChIJ2eUgeAK6j4ARbn5u_wAGqWA\",\"types\":[\"street_address\"]},"
+      + "{\"geometry\":{\"location\":{\"lat\":3.0,\"lng\":-3.0}}}],\"status\":\"OK\"}";
+  private static final String NO_MATCH = "{\"status\":\"ZERO_RESULTS\",\"results\":[]}";
+  private static final String DENIED =
+      "{\"error_message\":\"The provided API key is invalid.\",\"results\":[],\"status\":\"REQUEST_DENIED\"}";
+
+  private HttpServer server;
+  private final List<String> paths = new CopyOnWriteArrayList<>();
+  private final List<String> encodings = new CopyOnWriteArrayList<>();
+
+  @Before
+  public void startServer() throws Exception {
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.createContext("/", exchange -> {
+      this.paths.add(exchange.getRequestURI().getPath());
+      this.encodings.add(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+      final String query = exchange.getRequestURI().getQuery();
+      if (query.contains("key=AIzaDenied")) {
+        respond(exchange, DENIED);
+        return;
+      }
+      if (query.contains("address=error")) {
+        exchange.sendResponseHeaders(500, -1);
+        exchange.close();
+        return;
+      }
+      if (query.contains("address=busy")) {
+        exchange.sendResponseHeaders(429, -1);
+        exchange.close();
+        return;
+      }
+      if (query.contains("address=forbidden")) {
+        exchange.sendResponseHeaders(403, -1);
+        exchange.close();
+        return;
+      }
+      respond(exchange, query.contains("Amphitheatre") ? MATCH : NO_MATCH);
+    });
+    this.server.start();
+  }
+
+  private static void respond(HttpExchange exchange, String json) throws IOException {
+    final byte[] response = json.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(200, response.length);
+    try (OutputStream body = exchange.getResponseBody()) {
+      body.write(response);
+    }
+  }
+
+  @After
+  public void stopServer() {
+    this.server.stop(0);
+  }
+
+  private Settings settings(String path) {
+    return Settings.builder()
+        .put(API_KEY.getKey(), "AIzaMock")
+        .put(HTTP_BASE_URL.getKey(), "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+            + this.server.getAddress().getPort() + path)
+        .build();
+  }
+
+  public void testBaseUrl() throws Exception {
+    final GoogleGeocodingProvider provider = new GoogleGeocodingProvider(settings("/mirror/"));
+    try {
+      final GeocodingOutput output = provider.geocode(GeocodingProcessorTests.KNOWN_ADDRESS);
+      assertThat(output.getLatitude(), equalTo(1.0));
+      assertThat(output.getLongitude(), equalTo(-1.0));
+      assertThat(provider.geocode("unknown"), nullValue());
+      assertThat(this.paths.get(0), equalTo("/mirror/maps/api/geocode/json"));
+      assertThat(this.encodings.get(0), startsWith("gzip"));
+    } finally {
+      provider.close();
+    }
+  }
+
+  public void testServerErrorsAreRetryable() throws Exception {
+    final GoogleGeocodingProvider provider = new GoogleGeocodingProvider(settings(""));
+    try {
+      final IOException e = expectThrows(IOException.class, () -> provider.geocode("error"));
+      assertThat(e.getMessage(), equalTo("The Geocoding API responded with HTTP status [500]."));
+      assertThat(provider.isRetryable(e), is(true));
+      assertThat(provider.isRetryable(expectThrows(IOException.class, () -> provider.geocode("busy"))), is(true));
+    } finally {
+      provider.close();
+    }
+  }
+
+  public void testClientErrorsAreNotRetryable() throws Exception {
+    final GoogleGeocodingProvider provider = new GoogleGeocodingProvider(settings(""));
+    try {
+      final IOException e = expectThrows(IOException.class, () -> provider.geocode("forbidden"));
+      assertThat(e.getMessage(), equalTo("The Geocoding API responded with HTTP status [403]."));
+      assertThat(provider.isRetryable(e), is(false));
+    } finally {
+      provider.close();
+    }
+  }
+
+  public void testDeniedKeyIsTakenOutOfRotation() throws Exception {
+    final Settings settings = Settings.builder()
+        .put(settings(""))
+        .put(API_KEYS.getConcreteSettingForNamespace("denied").getKey(), "AIzaDenied")
+        .put(API_KEYS.getConcreteSettingForNamespace("valid").getKey(), "AIzaValid")
+        .build();
+    final GoogleGeocodingProvider provider = new GoogleGeocodingProvider(settings);
+    try {
+      // keys are tried in the order of their names
+      final RequestDeniedException e = expectThrows(RequestDeniedException.class,
+          () -> provider.geocode(GeocodingProcessorTests.KNOWN_ADDRESS));
+      assertThat(provider.isRetryable(e), is(true));
+      for (int i = 0; i < 3; i++) {
+        assertThat(provider.geocode(GeocodingProcessorTests.KNOWN_ADDRESS).getLatitude(), equalTo(1.0));
+      }
+    } finally {
+      provider.close();
+    }
+  }
+
+  public void testStubServer() throws Exception {
+    final StubGeocodingServer stub = new StubGeocodingServer(TimeValue.timeValueMillis(1), TimeValue.timeValueMillis(5),
+        0, 0, randomLong());
+    stub.start();
+    final GoogleGeocodingProvider provider = new GoogleGeocodingProvider(Settings.builder()
+        .put(API_KEY.getKey(), "AIzaMock")
+        .put(HTTP_BASE_URL.getKey(), "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+            + stub.getAddress().getPort())
+        .build());
+    try {
+      final GeocodingOutput output = provider.geocode(GeocodingProcessorTests.KNOWN_ADDRESS);
+      assertThat(output.hasLocation(), is(true));
+      assertThat(provider.geocode(GeocodingProcessorTests.KNOWN_ADDRESS).getLatitude(), equalTo(output.getLatitude()));
+      assertThat(provider.geocode("nowhere"), nullValue());
+    } finally {
+      provider.close();
+      stub.stop();
+    }
+  }
+
+  public void testParseReadsOnlyTheFirstLocation() throws Exception {
+    final GeocodingOutput output = parse(MATCH);
+    assertThat(output.getLatitude(), equalTo(1.0));
+    assertThat(output.getLongitude(), equalTo(-1.0));
+
+    // the rest of the response is not read once the location has been found
+    final String truncated = MATCH.substring(0, MATCH.indexOf("\"location_type\""));
+    assertThat(parse(truncated).getLatitude(), equalTo(1.0));
+
+    assertThat(parse(NO_MATCH), nullValue());
+    assertThat(parse("{\"results\":[{\"formatted_address\":\"nowhere\"}],\"status\":\"OK\"}"), nullValue());
+  }
+
+  public void testParseErrors() throws Exception {
+    final RequestDeniedException denied = expectThrows(RequestDeniedException.class, () -> parse(DENIED));
+    assertThat(denied.getMessage(), equalTo("The provided API key is invalid."));
+    expectThrows(OverQueryLimitException.class, () -> parse("{\"results\":[],\"status\":\"OVER_QUERY_LIMIT\"}"));
+    expectThrows(IOException.class, () -> parse("[]"));
+  }
+
+  private static GeocodingOutput parse(String response) throws Exception {
+    return GoogleGeocodingProvider.parse(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  public void testCompressionCanBeDisabled() throws Exception {
+    final Settings settings = Settings.builder()
+        .put(settings(""))
+        .put(HTTP_COMPRESSION.getKey(), false)
+        .build();
+    final GoogleGeocodingProvider provider = new GoogleGeocodingProvider(settings);
+    try {
+      provider.geocode(GeocodingProcessorTests.KNOWN_ADDRESS);
+      assertThat(this.paths.get(0), equalTo("/maps/api/geocode/json"));
+      assertThat(this.encodings.get(0), equalTo("identity"));
+    } finally {
+      provider.close();
+    }
+  }
+
+  public void testInvalidBaseUrl() {
+    final Settings settings = Settings.builder()
+        .put(HTTP_BASE_URL.getKey(), "not a url")
+        .build();
+    final IllegalArgumentException e = expectThrows(IllegalArgumentException.class, () -> HTTP_BASE_URL.get(settings));
+    assertThat(e.getMessage(), is("Invalid geocoding base URL [not a url]"));
+  }
+
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.CIRCUIT_BREAKER_OPEN_DURATION;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.HEDGE_PERCENTILE;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.RATE_LIMIT_CLUSTER_QPS;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.RETRY_INITIAL_BACKOFF;
+import static com.corneti.elasticsearch.plugin.ingest.geocoding.IngestGeocodingPlugin.RETRY_MAX_RETRIES;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class RetryingGeocodingProviderTests extends ESTestCase {
+
+  /**
+   * This mock fails with a retryable error until the configured number of failures is reached.
+   */
+  static final class FlakyGeocodingProvider implements GeocodingProvider {
+
+    final AtomicInteger calls = new AtomicInteger();
+    final int failures;
+    final boolean retryable;
+
+    FlakyGeocodingProvider(int failures, boolean retryable) {
+      this.failures = failures;
+      this.retryable = retryable;
+    }
+
+    @Override
+    public GeocodingOutput geocode(String address) throws Exception {
+      if (calls.incrementAndGet() <= failures) {
+        throw retryable ? new IOException("Server Error: 503 (mock)") : new IllegalArgumentException("Bad (mock)");
+      }
+      return new GeocodingOutput(1.0, -1.0);
+    }
+
+    @Override
+    public boolean isRetryable(Exception e) {
+      return e instanceof IOException;
+    }
+
+    @Override
+    public void close() {
+    }
+
+  }
+
+  private static Settings.Builder settings() {
+    return Settings.builder()
+        .put(RATE_LIMIT_CLUSTER_QPS.getKey(), 0)
+        .put(RETRY_INITIAL_BACKOFF.getKey(), "1ms");
+  }
+
+  private static RetryingGeocodingProvider provider(Settings settings, GeocodingProvider delegate) {
+    return new RetryingGeocodingProvider(settings, delegate, new GeocodingRateLimiter(settings));
+  }
+
+  public void testRetriesTransientErrors() throws Exception {
+    final FlakyGeocodingProvider flaky = new FlakyGeocodingProvider(2, true);
+    final RetryingGeocodingProvider provider = provider(settings().put(RETRY_MAX_RETRIES.getKey(), 2).build(), flaky);
+
+    assertThat(provider.geocode("somewhere").getLatitude(), equalTo(1.0));
+    assertThat(flaky.calls.get(), is(3));
+  }
+
+  public void testGivesUpAfterMaxRetries() {
+    final FlakyGeocodingProvider flaky = new FlakyGeocodingProvider(10, true);
+    final RetryingGeocodingProvider provider = provider(settings().put(RETRY_MAX_RETRIES.getKey(), 1).build(), flaky);
+
+    expectThrows(IOException.class, () -> provider.geocode("somewhere"));
+    assertThat(flaky.calls.get(), is(2));
+  }
+
+  public void testDoesNotRetryOtherErrors() {
+    final FlakyGeocodingProvider flaky = new FlakyGeocodingProvider(1, false);
+    final RetryingGeocodingProvider provider = provider(settings().build(), flaky);
+
+    expectThrows(IllegalArgumentException.class, () -> provider.geocode("somewhere"));
+    assertThat(flaky.calls.get(), is(1));
+    assertThat(provider.getCircuitBreaker().isOpen(), is(false));
+  }
+
+  public void testCircuitBreakerOpensOnSustainedFailures() throws Exception {
+    final FlakyGeocodingProvider flaky = new FlakyGeocodingProvider(3, true);
+    final Settings settings = settings()
+        .put(RETRY_MAX_RETRIES.getKey(), 0)
+        .put(CIRCUIT_BREAKER_FAILURE_THRESHOLD.getKey(), 3)
+        .put(CIRCUIT_BREAKER_OPEN_DURATION.getKey(), "1h")
+        .build();
+    final RetryingGeocodingProvider provider = provider(settings, flaky);
+
+    for (int i = 0; i < 3; i++) {
+      expectThrows(IOException.class, () -> provider.geocode("somewhere"));
+    }
+    assertThat(provider.getCircuitBreaker().isOpen(), is(true));
+    expectThrows(EsRejectedExecutionException.class, () -> provider.geocode("somewhere"));
+    assertThat(flaky.calls.get(), is(3));
+  }
+
+  public void testCircuitBreakerProbe() {
+    final Settings settings = settings()
+        .put(CIRCUIT_BREAKER_FAILURE_THRESHOLD.getKey(), 2)
+        .put(CIRCUIT_BREAKER_OPEN_DURATION.getKey(), "1s")
+        .build();
+    final GeocodingCircuitBreaker breaker = new GeocodingCircuitBreaker(settings);
+    final long second = TimeUnit.SECONDS.toNanos(1);
+    final long now = System.nanoTime();
+
+    breaker.onFailure(now);
+    assertThat(breaker.allowRequest(now), is(true));
+    breaker.onFailure(now);
+    assertThat(breaker.allowRequest(now), is(false));
+
+    // a single probe is let through once the breaker has been open long enough
+    assertThat(breaker.allowRequest(now + second), is(true));
+    assertThat(breaker.allowRequest(now + second), is(false));
+    breaker.onFailure(now + second);
+    assertThat(breaker.allowRequest(now + second + second / 2), is(false));
+
+    assertThat(breaker.allowRequest(now + 2 * second), is(true));
+    breaker.onSuccess();
+    assertThat(breaker.isOpen(), is(false));
+    assertThat(breaker.allowRequest(now + 2 * second), is(true));
+  }
+
+  public void testSlowRequestsAreHedged() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    final int warmup = 256;
+    final GeocodingProvider slow = new GeocodingProvider() {
+      @Override
+      public GeocodingOutput geocode(String address) throws Exception {
+        if (calls.incrementAndGet() == warmup + 1) {
+          release.await();
+          return new GeocodingOutput(0.0, 0.0);
+        }
+        return new GeocodingOutput(1.0, -1.0);
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    final RetryingGeocodingProvider provider = provider(settings().put(HEDGE_PERCENTILE.getKey(), 90).build(), slow);
+    final ExecutorService executor = EsExecutors.newFixed("hedge", 4, 10,
+        EsExecutors.daemonThreadFactory("hedge"), new ThreadContext(Settings.EMPTY));
+    provider.setHedgeExecutor(executor);
+
+    try {
+      for (int i = 0; i < warmup; i++) {
+        provider.geocode("somewhere");
+      }
+      assertThat(provider.geocode("somewhere").getLatitude(), equalTo(1.0));
+      assertThat(calls.get(), is(warmup + 2));
+    } finally {
+      release.countDown();
+      terminate(executor);
+    }
+  }
+
+  public void testFailedHedgedRequestsAreUnwrapped() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    final int warmup = 256;
+    final GeocodingProvider failing = new GeocodingProvider() {
+      @Override
+      public GeocodingOutput geocode(String address) throws Exception {
+        final int call = calls.incrementAndGet();
+        if (call == warmup + 1) {
+          // the first request fails once the hedged one has failed too
+          release.await();
+          throw new IOException("Server Error: 503 (mock)");
+        }
+        if (call == warmup + 2) {
+          release.countDown();
+          throw new IOException("Server Error: 503 (mock)");
+        }
+        return new GeocodingOutput(1.0, -1.0);
+      }
+
+      @Override
+      public boolean isRetryable(Exception e) {
+        return e instanceof IOException;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    final Settings settings = settings()
+        .put(HEDGE_PERCENTILE.getKey(), 90)
+        .put(RETRY_MAX_RETRIES.getKey(), 0)
+        .put(CIRCUIT_BREAKER_FAILURE_THRESHOLD.getKey(), 1)
+        .put(CIRCUIT_BREAKER_OPEN_DURATION.getKey(), "1h")
+        .build();
+    final RetryingGeocodingProvider provider = provider(settings, failing);
+    final ExecutorService executor = EsExecutors.newFixed("hedge", 4, 10,
+        EsExecutors.daemonThreadFactory("hedge"), new ThreadContext(Settings.EMPTY));
+    provider.setHedgeExecutor(executor);
+
+    try {
+      for (int i = 0; i < warmup; i++) {
+        provider.geocode("somewhere");
+      }
+      expectThrows(IOException.class, () -> provider.geocode("somewhere"));
+      assertThat(calls.get(), is(warmup + 2));
+      // the failure counts as a transient one
+      assertThat(provider.getCircuitBreaker().isOpen(), is(true));
+    } finally {
+      release.countDown();
+      terminate(executor);
+    }
+  }
+
+  public void testFailedRequestIsNotHedged() throws Exception {
+    final AtomicInteger calls = new AtomicInteger();
+    final int warmup = 256;
+    final GeocodingProvider failing = new GeocodingProvider() {
+      @Override
+      public GeocodingOutput geocode(String address) throws Exception {
+        if (calls.incrementAndGet() > warmup) {
+          throw new IllegalArgumentException("Bad (mock)");
+        }
+        Thread.sleep(1);
+        return new GeocodingOutput(1.0, -1.0);
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    final RetryingGeocodingProvider provider = provider(settings().put(HEDGE_PERCENTILE.getKey(), 50).build(),
+        failing);
+    final ExecutorService executor = EsExecutors.newFixed("hedge", 4, 10,
+        EsExecutors.daemonThreadFactory("hedge"), new ThreadContext(Settings.EMPTY));
+    provider.setHedgeExecutor(executor);
+
+    try {
+      for (int i = 0; i < warmup; i++) {
+        provider.geocode("somewhere");
+      }
+      // the request fails well before the hedging delay, which is not waited for
+      expectThrows(IllegalArgumentException.class, () -> provider.geocode("somewhere"));
+      assertThat(calls.get(), is(warmup + 1));
+    } finally {
+      terminate(executor);
+    }
+  }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import org.elasticsearch.common.geo.GeoUtils;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.RandomDocumentPicks;
+import org.elasticsearch.test.ESTestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class ReverseGeocodingProcessorTests extends ESTestCase {
+
+  private PlaceIndex createIndex(List<String> lines) throws Exception {
+    final Path file = createTempFile();
+    Files.write(file, lines, StandardCharsets.UTF_8);
+    return new PlaceIndex(file);
+  }
+
+  private PlaceIndex createItalianIndex() throws Exception {
+    return createIndex(Arrays.asList(
+        "name,country,lat,lon",
+        "Zocca,IT,44.3459,10.9925",
+        "Modena,IT,44.6471,10.9252",
+        "Bologna,IT,44.4949,11.3426",
+        "Reykjavik,,64.1466,-21.9426"));
+  }
+
+  public void testNearestMatchesBruteForce() throws Exception {
+    final int size = randomIntBetween(1, 2000);
+    final double[] latitudes = new double[size];
+    final double[] longitudes = new double[size];
+    final List<String> lines = new ArrayList<>();
+    lines.add("id\tlatitude\tlongitude");
+    for (int i = 0; i < size; i++) {
+      latitudes[i] = randomDoubleBetween(-90, 90, true);
+      longitudes[i] = randomDoubleBetween(-180, 180, true);
+      lines.add(i + "\t" + latitudes[i] + "\t" + longitudes[i]);
+    }
+    final PlaceIndex index = createIndex(lines);
+    assertThat(index.size(), is(size));
+
+    for (int i = 0; i < 100; i++) {
+      final double latitude = randomDoubleBetween(-90, 90, true);
+      final double longitude = randomDoubleBetween(-180, 180, true);
+      double expected = Double.POSITIVE_INFINITY;
+      for (int j = 0; j < size; j++) {
+        expected = Math.min(expected, GeoUtils.arcDistance(latitude, longitude, latitudes[j], longitudes[j]));
+      }
+
+      final int position = index.nearest(latitude, longitude, Double.POSITIVE_INFINITY);
+      final int place = Integer.parseInt(index.value(position, 0));
+      final double actual = GeoUtils.arcDistance(latitude, longitude, latitudes[place], longitudes[place]);
+      // coordinates are indexed as floats
+      assertEquals(expected, actual, 5.0);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testPointAsMap() throws Exception {
+    final Map<String, Object> point = new HashMap<>();
+    point.put("lat", 44.35);
+    point.put("lon", 10.99);
+    final Map<String, Object> document = new HashMap<>();
+    document.put("location", point);
+    final IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+
+    final ReverseGeocodingProcessor processor = new ReverseGeocodingProcessor(createItalianIndex(), "tag", "location",
+        "place", Double.POSITIVE_INFINITY);
+    processor.execute(ingestDocument);
+
+    final Map<String, Object> place = ingestDocument.getFieldValue("place", Map.class);
+    assertThat(place.size(), is(2));
+    assertThat(place.get("name"), equalTo("Zocca"));
+    assertThat(place.get("country"), equalTo("IT"));
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testPointAsString() throws Exception {
+    final Map<String, Object> document = new HashMap<>();
+    document.put("location", "64.1,-21.9");
+    final IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+
+    final ReverseGeocodingProcessor processor = new ReverseGeocodingProcessor(createItalianIndex(), "tag", "location",
+        "place", Double.POSITIVE_INFINITY);
+    processor.execute(ingestDocument);
+
+    final Map<String, Object> place = ingestDocument.getFieldValue("place", Map.class);
+    assertThat(place.size(), is(1));
+    assertThat(place.get("name"), equalTo("Reykjavik"));
+  }
+
+  public void testMaxDistance() throws Exception {
+    final Map<String, Object> document = new HashMap<>();
+    document.put("location", "0,0");
+    final IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+
+    final Map<String, Object> config = new HashMap<>();
+    config.put("field", "location");
+    config.put("max_distance", "100km");
+    final ReverseGeocodingProcessor processor = new ReverseGeocodingProcessor.Factory(createItalianIndex())
+        .create(null, "tag", config);
+    processor.execute(ingestDocument);
+
+    assertThat(ingestDocument.hasField("place"), is(true));
+    assertThat(ingestDocument.getFieldValue("place", Map.class), nullValue());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testInvalidPoint() throws Exception {
+    final Map<String, Object> document = new HashMap<>();
+    document.put("location", "somewhere");
+    final IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+
+    final ReverseGeocodingProcessor processor = new ReverseGeocodingProcessor(createItalianIndex(), "tag", "location",
+        "place", Double.POSITIVE_INFINITY);
+    processor.execute(ingestDocument);
+
+    assertThat(ingestDocument.hasField("place.name"), is(false));
+    final List<String> errors = ingestDocument.getFieldValue("place._errors", List.class);
+    assertThat(errors.size(), is(1));
+  }
+
+  public void testMissingPlacesFile() throws Exception {
+    final Map<String, Object> config = new HashMap<>();
+    config.put("field", "location");
+    final Exception e = expectThrows(Exception.class,
+        () -> new ReverseGeocodingProcessor.Factory(null).create(null, "tag", config));
+    assertThat(e.getMessage(),
+        equalTo("[field] no places file is available; check the [ingest.geocoding.places.file] setting"));
+  }
+
+}
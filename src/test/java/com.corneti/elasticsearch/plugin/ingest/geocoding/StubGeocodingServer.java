@@ -0,0 +1,208 @@
+/*
+ * Copyright [2017] [Fabio Corneti]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.corneti.elasticsearch.plugin.ingest.geocoding;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stub of the Geocoding API, used as a test fixture by the load test.
+ *
+ * Each address is geocoded to coordinates derived from its hash, except addresses containing {@code nowhere}, which
+ * have no matches. Responses are delayed according to a log-normal latency distribution, a share of the requests
+ * fails with a server error, and requests beyond the maximum rate get an {@code OVER_QUERY_LIMIT} status, like the
+ * real API.
+ *
+ * Usage: {@code StubGeocodingServer <directory> [median_latency=20ms] [p99_latency=100ms] [error_rate=0]
+ * [max_qps=0] [seed=0]}; a zero {@code max_qps} disables the rate limit. The address of the server is written to the
+ * {@code ports} file of the directory, and its process id to the {@code pid} file.
+ */
+@SuppressForbidden(reason = "uses a HttpServer to emulate the Geocoding API")
+public final class StubGeocodingServer {
+
+  // the quantile function of the standard normal distribution at 0.99
+  private static final double Z_99 = 2.326;
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final double mu;
+  private final double sigma;
+  private final double errorRate;
+  private final double maxQps;
+  private final Random random;
+
+  private double tokens;
+  private long lastRefill = System.nanoTime();
+
+  StubGeocodingServer(TimeValue medianLatency, TimeValue p99Latency, double errorRate, double maxQps, long seed)
+      throws IOException {
+    this.mu = Math.log(Math.max(medianLatency.micros(), 1));
+    this.sigma = Math.max(Math.log(Math.max(p99Latency.micros(), 1)) - this.mu, 0) / Z_99;
+    this.errorRate = errorRate;
+    this.maxQps = maxQps;
+    this.tokens = maxQps;
+    this.random = new Random(seed);
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.createContext("/maps/api/geocode/json", this::handle);
+    // responses are delayed by sleeping, so each request needs its own thread
+    this.server.setExecutor(this.executor);
+  }
+
+  void start() {
+    this.server.start();
+  }
+
+  void stop() throws InterruptedException {
+    this.server.stop(0);
+    this.executor.shutdownNow();
+    this.executor.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  InetSocketAddress getAddress() {
+    return this.server.getAddress();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    final long latencyMicros;
+    final boolean error;
+    synchronized (this.random) {
+      latencyMicros = (long) Math.exp(this.mu + this.sigma * this.random.nextGaussian());
+      error = this.random.nextDouble() < this.errorRate;
+    }
+    try {
+      Thread.sleep(latencyMicros / 1000, (int) (latencyMicros % 1000) * 1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    try {
+      if (error) {
+        exchange.sendResponseHeaders(500, -1);
+        return;
+      }
+      final String address = parseAddress(exchange.getRequestURI().getRawQuery());
+      final String response;
+      if (!tryAcquire()) {
+        response = "{\"results\":[],\"status\":\"OVER_QUERY_LIMIT\"}";
+      } else if (address == null) {
+        response = "{\"results\":[],\"status\":\"INVALID_REQUEST\"}";
+      } else if (address.contains("nowhere")) {
+        response = "{\"results\":[],\"status\":\"ZERO_RESULTS\"}";
+      } else {
+        final int hash = address.hashCode();
+        final double latitude = (hash & 0xFFFF) * 180.0 / 0x10000 - 90;
+        final double longitude = (hash >>> 16) * 360.0 / 0x10000 - 180;
+        response = String.format(Locale.ROOT, "{\"results\":[{\"formatted_address\":\"%s\",\"geometry\":"
+            + "{\"location\":{\"lat\":%f,\"lng\":%f},\"location_type\":\"ROOFTOP\"}}],\"status\":\"OK\"}",
+            address.replace("\"", ""), latitude, longitude);
+      }
+      final byte[] body = response.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream stream = exchange.getResponseBody()) {
+        stream.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static String parseAddress(String query) throws IOException {
+    if (query == null) {
+      return null;
+    }
+    for (String parameter : query.split("&")) {
+      if (parameter.startsWith("address=")) {
+        return URLDecoder.decode(parameter.substring("address=".length()), "UTF-8");
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return false if the request exceeds the maximum rate.
+   */
+  private synchronized boolean tryAcquire() {
+    if (this.maxQps <= 0) {
+      return true;
+    }
+    final long now = System.nanoTime();
+    this.tokens = Math.min(this.maxQps, this.tokens + (now - this.lastRefill) * this.maxQps / 1e9);
+    this.lastRefill = now;
+    if (this.tokens < 1) {
+      return false;
+    }
+    this.tokens--;
+    return true;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      throw new IllegalArgumentException("StubGeocodingServer <directory> [name=value...]");
+    }
+    final Path directory = Paths.get(args[0]);
+    final Map<String, String> options = new HashMap<>();
+    for (int i = 1; i < args.length; i++) {
+      final int separator = args[i].indexOf('=');
+      if (separator <= 0) {
+        throw new IllegalArgumentException("Invalid option [" + args[i] + "], expected name=value");
+      }
+      options.put(args[i].substring(0, separator), args[i].substring(separator + 1));
+    }
+
+    final StubGeocodingServer server = new StubGeocodingServer(
+        TimeValue.parseTimeValue(options.getOrDefault("median_latency", "20ms"), "median_latency"),
+        TimeValue.parseTimeValue(options.getOrDefault("p99_latency", "100ms"), "p99_latency"),
+        Double.parseDouble(options.getOrDefault("error_rate", "0")),
+        Double.parseDouble(options.getOrDefault("max_qps", "0")),
+        Long.parseLong(options.getOrDefault("seed", "0")));
+    server.start();
+
+    writeFile(directory, "pid", ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+    writeFile(directory, "ports",
+        InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getAddress().getPort());
+  }
+
+  private static void writeFile(Path directory, String name, String content) throws IOException {
+    final Path tmp = Files.write(directory.resolve(name + ".tmp"), Collections.singleton(content));
+    Files.move(tmp, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+}